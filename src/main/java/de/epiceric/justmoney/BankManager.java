@@ -1,20 +1,47 @@
 package de.epiceric.justmoney;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 
 import org.bukkit.OfflinePlayer;
+import org.bukkit.World;
 
+import de.epiceric.justmoney.exception.NotEnoughMoneyException;
+import de.epiceric.justmoney.model.AccountTable;
 import de.epiceric.justmoney.model.BankAccount;
 
 /**
  * Class for bank account access.
+ * <p>
+ * Depending on the configured residency mode, either all bank accounts are
+ * loaded on startup, or they are loaded when they are first used and removed
+ * from memory again when they have not been used for a while.
+ * <p>
+ * The bank manager can be used from any thread. Loading or removing an account
+ * only locks a stripe of accounts that share the same hash. The balances of all
+ * loaded accounts are held in a compact {@link AccountTable}.
  * 
  * @since 1.0
  */
 public class BankManager {
+    /**
+     * Amount of locks used for loading and removing accounts, must be a power of two.
+     */
+    private static final int LOCK_STRIPES = 64;
+
     private static BankManager instance;
 
     /**
@@ -33,19 +60,89 @@ public class BankManager {
     }
 
     private final JustMoney plugin;
-    private final Map<UUID, BankAccount> bankAccounts = new HashMap<>();
+    private final boolean lazy;
+    private final int maxResidentAccounts;
+    private final long idleTime;
+    private final long prefetchExpiry;
+    private final long loadTimeout;
+
+    private final AccountTable accountTable = new AccountTable();
+    private final Map<UUID, Long> lastAccess = new ConcurrentHashMap<>();
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    // Completes when all accounts have been loaded without lazy residency
+    private final CompletableFuture<Void> accountsLoaded = new CompletableFuture<>();
+
+    // Accounts that are being loaded, so each account is only loaded once at a time
+    private final Map<UUID, CompletableFuture<Void>> loading = new ConcurrentHashMap<>();
+
+    // Accounts loaded on pre-login whose owner has not joined yet
+    private final Map<UUID, Long> prefetched = new ConcurrentHashMap<>();
+    private final AtomicLong prefetchHits = new AtomicLong();
+    private final AtomicLong prefetchMisses = new AtomicLong();
+    private final AtomicLong prefetchesExpired = new AtomicLong();
 
     private BankManager(JustMoney plugin) {
         this.plugin = plugin;
+        this.lazy = "lazy".equalsIgnoreCase(plugin.getConfig().getString("residency.mode"));
+        this.maxResidentAccounts = Math.max(1, plugin.getConfig().getInt("residency.max-accounts"));
+        this.idleTime = TimeUnit.MINUTES.toMillis(plugin.getConfig().getLong("residency.idle-minutes"));
+        this.prefetchExpiry = TimeUnit.SECONDS.toMillis(plugin.getConfig().getLong("residency.prefetch-expiry", 60));
+        this.loadTimeout = TimeUnit.SECONDS.toMillis(Math.max(1, plugin.getConfig().getLong("residency.load-timeout", 5)));
+
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Gets the lock guarding the loading and removal of the given player's account.
+     * 
+     * @param uuid the account owner's UUID
+     * @return the lock
+     */
+    private Object getLock(UUID uuid) {
+        int hash = uuid.hashCode();
+        return locks[(hash ^ (hash >>> 16)) & (LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * Gets the table that holds the balances of all loaded bank accounts.
+     * 
+     * @return the account table
+     * @since 1.3
+     */
+    public AccountTable getAccountTable() {
+        return accountTable;
+    }
+
+    /**
+     * Gets whether bank accounts are loaded on demand instead of all at startup.
+     * 
+     * @return whether the lazy residency mode is enabled
+     * @since 1.3
+     */
+    public boolean isLazy() {
+        return lazy;
     }
 
     /**
      * Gets the bank account for the given player.
      * <p>
      * If none exists yet, a new one with the configured starting balance is created.
+     * Until the stored accounts have been loaded on startup, this blocks for at most the
+     * configured load timeout, so a new account does not hide a stored one.
+     * <p>
+     * In lazy residency mode, the account is loaded from the storage if it is not in
+     * memory, which blocks until it has been loaded, but at most for the configured load
+     * timeout. If the account is already being loaded, e.g. because its owner is logging
+     * in, that load is waited for instead of loading it again. Players who are online or
+     * whose accounts have been preloaded with {@link #preloadAccounts(Collection)} never
+     * block.
      * 
      * @param owner the player whose account to get
      * @return a bank account
+     * @throws IllegalStateException if the account could not be loaded in time
      * @since 1.0
      */
     public BankAccount getBankAccount(OfflinePlayer owner) {
@@ -53,20 +150,343 @@ public class BankManager {
             return null;
         }
 
-        if (!bankAccounts.containsKey(owner.getUniqueId())) {
-            bankAccounts.put(owner.getUniqueId(), new BankAccount(plugin, owner));
+        UUID uuid = owner.getUniqueId();
+        if (accountTable.contains(uuid)) {
+            touch(uuid);
+            return BankAccount.view(plugin, owner);
+        }
+
+        if (!lazy) {
+            if (!accountsLoaded.isDone()) {
+                // A new account would keep the start balance instead of the stored one
+                awaitLoad(uuid, accountsLoaded, System.currentTimeMillis() + loadTimeout);
+                if (accountTable.contains(uuid)) {
+                    return BankAccount.view(plugin, owner);
+                }
+            }
+
+            // Only adds the account if it has not been created concurrently
+            return new BankAccount(plugin, owner);
+        }
+
+        long deadline = System.currentTimeMillis() + loadTimeout;
+        while (true) {
+            // No lock is held while waiting, so other accounts can be used and loaded meanwhile
+            awaitLoad(uuid, preloadAccounts(Collections.singleton(uuid)), deadline);
+
+            synchronized (getLock(uuid)) {
+                // The account might have been removed again before it was used
+                if (accountTable.contains(uuid)) {
+                    touch(uuid);
+                    return BankAccount.view(plugin, owner);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets whether the stored accounts have been loaded on startup. In lazy residency mode,
+     * accounts are loaded when they are used, so this is always {@code true}.
+     * 
+     * @return whether the accounts have been loaded
+     * @since 1.3
+     */
+    public boolean isLoaded() {
+        return lazy || (accountsLoaded.isDone() && !accountsLoaded.isCompletedExceptionally());
+    }
+
+    /**
+     * Waits until the given account has been loaded.
+     * 
+     * @param uuid the account owner's UUID
+     * @param load the future that completes when the account has been loaded
+     * @param deadline the time in milliseconds until which to wait
+     * @throws IllegalStateException if the account could not be loaded in time
+     */
+    private void awaitLoad(UUID uuid, CompletableFuture<Void> load, long deadline) {
+        try {
+            load.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("Failed to load bank account of player " + uuid, ex.getCause());
+        } catch (TimeoutException ex) {
+            throw new IllegalStateException("Timed out loading bank account of player " + uuid);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading bank account of player " + uuid);
+        }
+    }
+
+    /**
+     * Moves the given amount from one player's bank account to another player's account
+     * in the given world.
+     * <p>
+     * Both balances are changed atomically and are stored together, so money can never
+     * be withdrawn without being deposited.
+     * 
+     * @param from the player who sends the money
+     * @param to the player who receives the money
+     * @param world the world
+     * @param amount the amount to transfer
+     * @return the new balance of the sending player
+     * @throws NotEnoughMoneyException when the sending player does not have enough money
+     * @throws IllegalArgumentException when the amount is negative or both players are the same
+     * @since 1.3
+     * @see BankAccount#transfer(BankAccount, World, double)
+     */
+    public double transfer(OfflinePlayer from, OfflinePlayer to, World world, double amount)
+            throws NotEnoughMoneyException, IllegalArgumentException {
+        return getBankAccount(from).transfer(getBankAccount(to), world, amount);
+    }
+
+    /**
+     * Moves the given amount from one player's bank account to another player's account
+     * in the default world.
+     * 
+     * @param from the player who sends the money
+     * @param to the player who receives the money
+     * @param amount the amount to transfer
+     * @return the new balance of the sending player
+     * @throws NotEnoughMoneyException when the sending player does not have enough money
+     * @throws IllegalArgumentException when the amount is negative or both players are the same
+     * @since 1.3
+     * @see BankAccount#transfer(BankAccount, double)
+     */
+    public double transfer(OfflinePlayer from, OfflinePlayer to, double amount)
+            throws NotEnoughMoneyException, IllegalArgumentException {
+        return getBankAccount(from).transfer(getBankAccount(to), amount);
+    }
+
+    /**
+     * Loads the bank accounts of the given players in the background, if they are not in memory yet.
+     * <p>
+     * Accounts that are already being loaded are not loaded again, the returned future then also
+     * waits for those loads. This only has an effect in lazy residency mode.
+     * 
+     * @param uuids the UUIDs of the account owners
+     * @return a future that completes when the accounts have been loaded
+     * @since 1.3
+     */
+    public CompletableFuture<Void> preloadAccounts(Collection<UUID> uuids) {
+        if (!lazy) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        CompletableFuture<Void> load = new CompletableFuture<>();
+        List<UUID> missing = new ArrayList<>();
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+
+        for (UUID uuid : uuids) {
+            if (accountTable.contains(uuid)) {
+                continue;
+            }
+
+            CompletableFuture<Void> running = loading.putIfAbsent(uuid, load);
+            if (running != null) {
+                pending.add(running);
+            } else {
+                missing.add(uuid);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            pending.add(load);
+            plugin.getStorage().getAccounts(missing).thenAccept(accounts -> {
+                // Creating the accounts has added them to the account table
+                Set<UUID> found = accounts.stream()
+                    .map(account -> account.getOwner().getUniqueId())
+                    .collect(Collectors.toSet());
+
+                // Players without a stored account get a new one, so it does not have to be looked up again
+                missing.stream()
+                    .filter(uuid -> !found.contains(uuid))
+                    .forEach(uuid -> new BankAccount(plugin, plugin.getServer().getOfflinePlayer(uuid)));
+                missing.forEach(this::touch);
+            }).whenComplete((result, ex) -> {
+                missing.forEach(uuid -> loading.remove(uuid, load));
+                if (ex != null) {
+                    load.completeExceptionally(ex);
+                } else {
+                    load.complete(null);
+                }
+            });
+        }
+
+        return CompletableFuture.allOf(pending.toArray(new CompletableFuture[0]));
+    }
+
+    /**
+     * Loads the bank account of a player who is about to join, so it is in memory
+     * when the player is online.
+     * <p>
+     * This blocks until the account has been loaded and must not be called on the main thread.
+     * If the player does not join within the configured time, the account may be removed
+     * from memory again. This only has an effect in lazy residency mode.
+     * 
+     * @param uuid the UUID of the joining player
+     * @throws CompletionException if the account could not be loaded
+     * @since 1.3
+     */
+    public void prefetchAccount(UUID uuid) {
+        if (!lazy) {
+            return;
+        }
+
+        preloadAccounts(Collections.singleton(uuid)).join();
+        prefetched.put(uuid, System.currentTimeMillis());
+    }
+
+    /**
+     * Records that the given player has joined and checks whether the player's
+     * bank account has already been in memory.
+     * <p>
+     * This only has an effect in lazy residency mode.
+     * 
+     * @param uuid the UUID of the player who joined
+     * @return whether the account has been in memory
+     * @since 1.3
+     */
+    public boolean completePrefetch(UUID uuid) {
+        if (!lazy) {
+            return true;
+        }
+
+        prefetched.remove(uuid);
+        boolean resident = accountTable.contains(uuid);
+        (resident ? prefetchHits : prefetchMisses).incrementAndGet();
+        return resident;
+    }
+
+    /**
+     * Gets the amount of players whose bank account had already been loaded when they joined.
+     * 
+     * @return the amount of prefetch hits
+     * @since 1.3
+     */
+    public long getPrefetchHits() {
+        return prefetchHits.get();
+    }
+
+    /**
+     * Gets the amount of players whose bank account had not been loaded yet when they joined.
+     * 
+     * @return the amount of prefetch misses
+     * @since 1.3
+     */
+    public long getPrefetchMisses() {
+        return prefetchMisses.get();
+    }
+
+    /**
+     * Gets the amount of prefetched bank accounts whose owner did not join in time.
+     * 
+     * @return the amount of expired prefetches
+     * @since 1.3
+     */
+    public long getPrefetchesExpired() {
+        return prefetchesExpired.get();
+    }
+
+    /**
+     * Removes bank accounts from memory that have been stored and have not been used for a while,
+     * or that exceed the configured maximum amount of accounts.
+     * <p>
+     * Accounts of online players are never removed, and prefetched accounts are only removed
+     * if their owner has not joined in time. This only has an effect in lazy residency mode.
+     * 
+     * @since 1.3
+     */
+    public synchronized void evictIdleAccounts() {
+        if (!lazy) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        for (Map.Entry<UUID, Long> entry : prefetched.entrySet()) {
+            // The player's login has failed or the player has left again
+            if (entry.getValue() < now - prefetchExpiry && prefetched.remove(entry.getKey(), entry.getValue())) {
+                prefetchesExpired.incrementAndGet();
+                evict(entry.getKey());
+            }
+        }
+
+        long deadline = now - idleTime;
+        int excess = accountTable.size() - maxResidentAccounts;
+
+        // Visit the least recently used accounts first
+        List<Map.Entry<UUID, Long>> accesses = new ArrayList<>(lastAccess.entrySet());
+        accesses.sort(Map.Entry.comparingByValue());
+
+        for (Map.Entry<UUID, Long> entry : accesses) {
+            if (excess <= 0 && entry.getValue() >= deadline) {
+                // All following accounts have been used more recently
+                break;
+            }
+
+            if (!prefetched.containsKey(entry.getKey()) && evict(entry.getKey())) {
+                excess--;
+            }
+        }
+    }
+
+    /**
+     * Removes the given player's account from memory, if it can be removed without losing changes.
+     * 
+     * @param uuid the account owner's UUID
+     * @return whether the account has been removed
+     */
+    private boolean evict(UUID uuid) {
+        synchronized (getLock(uuid)) {
+            if (!accountTable.contains(uuid)) {
+                lastAccess.remove(uuid);
+                return false;
+            }
+
+            OfflinePlayer owner = plugin.getServer().getOfflinePlayer(uuid);
+            if (plugin.getWriteQueue().isPending(BankAccount.view(plugin, owner)) || owner.isOnline()) {
+                return false;
+            }
+
+            // Accounts that have changed since the check are kept
+            if (!accountTable.removeIfUnchanged(uuid)) {
+                return false;
+            }
+            lastAccess.remove(uuid);
+            return true;
         }
-        return bankAccounts.get(owner.getUniqueId());
     }
 
     /**
      * Loads the given bank accounts so their balance is stored.
+     * <p>
+     * Since 1.3, creating the accounts has already added them to the account table.
+     * Until then, new accounts cannot be created, so they do not hide stored ones.
      * 
      * @param accounts the collection of accounts to load
      * @since 1.0
      */
     protected void loadAccounts(Collection<BankAccount> accounts) {
-        accounts.forEach(account -> bankAccounts.put(account.getOwner().getUniqueId(), account));
         plugin.getLogger().info(accounts.size() + " bank accounts have been loaded");
+        accountsLoaded.complete(null);
+    }
+
+    /**
+     * Lets waiting calls to {@link #getBankAccount(OfflinePlayer)} fail, because the stored
+     * accounts could not be loaded.
+     * 
+     * @param ex the cause of the failure
+     */
+    void failLoading(Throwable ex) {
+        accountsLoaded.completeExceptionally(ex);
+    }
+
+    /**
+     * Records that the account of the given player has been used.
+     * 
+     * @param uuid the account owner's UUID
+     */
+    private void touch(UUID uuid) {
+        if (lazy) {
+            lastAccess.put(uuid, System.currentTimeMillis());
+        }
     }
-}
\ No newline at end of file
+}
@@ -3,7 +3,9 @@ package de.epiceric.justmoney;
 import java.io.InputStreamReader;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.Locale;
 import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
 import java.util.logging.Level;
 
 import com.google.gson.JsonElement;
@@ -12,13 +14,20 @@ import com.google.gson.JsonParser;
 
 import org.bstats.bukkit.Metrics;
 import org.bstats.charts.SimplePie;
+import org.bukkit.entity.Player;
 import org.bukkit.plugin.ServicePriority;
 import org.bukkit.plugin.java.JavaPlugin;
 
 import de.epiceric.justmoney.command.CommandManager;
+import de.epiceric.justmoney.listener.PlayerListener;
 import de.epiceric.justmoney.model.BankAccount;
+import de.epiceric.justmoney.model.MoneyScale;
+import de.epiceric.justmoney.model.WorldRegistry;
 import de.epiceric.justmoney.storage.BankStorage;
 import de.epiceric.justmoney.storage.FileStorage;
+import de.epiceric.justmoney.storage.LogStorage;
+import de.epiceric.justmoney.storage.StorageExecutor;
+import de.epiceric.justmoney.storage.WriteBehindQueue;
 import de.epiceric.justmoney.storage.sql.MySqlStorage;
 import de.epiceric.justmoney.storage.sql.SqLiteStorage;
 import net.milkbowl.vault.economy.Economy;
@@ -30,6 +39,14 @@ import net.milkbowl.vault.economy.Economy;
  */
 public class JustMoney extends JavaPlugin {
     private BankStorage storage;
+    private String storageType;
+    private StorageMigration migration;
+    private StorageExecutor storageExecutor;
+    private WriteBehindQueue writeQueue;
+    private MoneyScale moneyScale;
+    private final WorldRegistry worldRegistry = new WorldRegistry();
+    private volatile Settings settings;
+    private PlayerIndex playerIndex;
 
     /**
      * Connects to the Spiget API to check for latest uploaded version.
@@ -76,26 +93,32 @@ public class JustMoney extends JavaPlugin {
     public void onLoad() {
         saveDefaultConfig();
 
-        String storageType = getConfig().getString("storage-type");
-        switch (storageType.toLowerCase()) {
-            case "sqlite":
-                storage = new SqLiteStorage(this);
-                break;
-            case "mysql":
-                storage = new MySqlStorage(this);
-                break;
-            case "flatfile":
-                storage = new FileStorage(this);
-                break;
-            default:
-                getLogger().warning("Invalid storage type: " + storageType);
-                getLogger().warning("Using flatfile storage as fallback");
-                storage = new FileStorage(this);
+        // Balances are held in minor units, so the decimal places cannot change at runtime
+        moneyScale = new MoneyScale(getConfig().getInt("formatting.decimal-places"));
+        settings = Settings.fromConfig(getConfig(), moneyScale);
+
+        storageExecutor = new StorageExecutor(this);
+
+        storageType = getConfig().getString("storage-type").toLowerCase(Locale.ROOT);
+        storage = createStorage(storageType);
+        if (storage == null) {
+            getLogger().warning("Invalid storage type: " + storageType);
+            getLogger().warning("Using flatfile storage as fallback");
+            storageType = "flatfile";
+            storage = new FileStorage(this);
+        }
+
+        writeQueue = new WriteBehindQueue(this);
+
+        if (getBankManager().isLazy()) {
+            // Accounts are loaded when they are first used
+            return;
         }
 
         storage.getAccounts()
             .thenAccept(getBankManager()::loadAccounts)
             .exceptionally(ex -> {
+                getBankManager().failLoading(ex);
                 getLogger().log(Level.SEVERE, "Failed to load bank accounts", ex);
                 getLogger().log(Level.SEVERE, "Plugin will be disabled");
                 getServer().getPluginManager().disablePlugin(this);
@@ -110,6 +133,24 @@ public class JustMoney extends JavaPlugin {
             getServer().getServicesManager().register(Economy.class, economy, this, ServicePriority.Normal);
         }
 
+        writeQueue.start();
+        storage.startRefreshing();
+
+        playerIndex = new PlayerIndex(this);
+        getServer().getOnlinePlayers().forEach(player -> playerIndex.update(player.getUniqueId(), player.getName()));
+        playerIndex.build();
+
+        getServer().getPluginManager().registerEvents(new PlayerListener(this), this);
+
+        if (getBankManager().isLazy()) {
+            getServer().getScheduler().runTaskTimerAsynchronously(this, getBankManager()::evictIdleAccounts, 1200, 1200);
+
+            // Players might already be online after a reload
+            getBankManager().preloadAccounts(getServer().getOnlinePlayers().stream()
+                .map(Player::getUniqueId)
+                .collect(Collectors.toList()));
+        }
+
         CommandManager command = new CommandManager(this);
         getCommand("money").setExecutor(command);
         getCommand("money").setTabCompleter(command);
@@ -117,11 +158,37 @@ public class JustMoney extends JavaPlugin {
         Metrics metrics = new Metrics(this, 8256);
         metrics.addCustomChart(new SimplePie("storage_type", () -> getStorage().getTypeName()));
         metrics.addCustomChart(new SimplePie("multi_world", () ->
-                getConfig().getBoolean("multi-world") ? "Enabled" : "Disabled"));
+                getSettings().isMultiWorld() ? "Enabled" : "Disabled"));
 
         checkUpdate();
     }
 
+    @Override
+    public void onDisable() {
+        if (getBankManager().isLazy()) {
+            BankManager bankManager = getBankManager();
+            getLogger().info(String.format("Account prefetch: %d hits, %d misses, %d expired",
+                    bankManager.getPrefetchHits(), bankManager.getPrefetchMisses(), bankManager.getPrefetchesExpired()));
+        }
+
+        // A running migration is paused and continues with the next "/money migrate"
+        StorageMigration migration = getMigration();
+        if (migration != null) {
+            migration.cancel();
+        }
+
+        // Write all pending changes, then let running loads complete before the storage is closed
+        if (writeQueue != null) {
+            writeQueue.drain();
+        }
+        if (storageExecutor != null) {
+            storageExecutor.shutdown(30000);
+        }
+        if (storage != null) {
+            storage.close();
+        }
+    }
+
     /**
      * Gets the singleton bank manager instance.
      * 
@@ -142,10 +209,33 @@ public class JustMoney extends JavaPlugin {
      * @see BankAccount#formatBalance()
      */
     public String format(double balance) {
-        int decimalPlaces = getConfig().getInt("formatting.decimal-places");
-        String value = String.format("%,." + decimalPlaces + "f", balance);
-        String format =  getConfig().getString("formatting.format");
-        return format.replace("{value}", value).replace("{sign}", getConfig().getString("formatting.sign"));
+        return getSettings().getFormatter().format(balance);
+    }
+
+    /**
+     * Gets the current settings.
+     * <p>
+     * The returned settings never change. When the config is reloaded, a new instance
+     * is returned by later calls.
+     * 
+     * @return the settings
+     * @since 1.3
+     */
+    public Settings getSettings() {
+        return settings;
+    }
+
+    /**
+     * Reloads the config and replaces the current settings.
+     * <p>
+     * Settings that are only read on startup, such as the storage type and the amount
+     * of decimal places, are not changed until the server is restarted.
+     * 
+     * @since 1.3
+     */
+    public void reloadSettings() {
+        reloadConfig();
+        settings = Settings.fromConfig(getConfig(), moneyScale);
     }
 
     /**
@@ -157,4 +247,112 @@ public class JustMoney extends JavaPlugin {
     public BankStorage getStorage() {
         return storage;
     }
+
+    /**
+     * Creates a new storage of the given type.
+     * 
+     * @param type the storage type, e.g. "flatfile" or "mysql"
+     * @return the storage or {@code null} if the type is invalid
+     * @since 1.3
+     */
+    public BankStorage createStorage(String type) {
+        switch (type.toLowerCase(Locale.ROOT)) {
+            case "sqlite":
+                return new SqLiteStorage(this);
+            case "mysql":
+                return new MySqlStorage(this);
+            case "flatfile":
+                return new FileStorage(this);
+            case "log":
+                return new LogStorage(this);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Gets the type of the storage that is used.
+     * 
+     * @return the storage type, e.g. "flatfile" or "mysql"
+     * @since 1.3
+     */
+    public String getStorageType() {
+        return storageType;
+    }
+
+    /**
+     * Starts the given migration, unless another migration is running.
+     * 
+     * @param migration the migration
+     * @return whether the migration has been started
+     * @since 1.3
+     */
+    public synchronized boolean startMigration(StorageMigration migration) {
+        if (this.migration != null && this.migration.isRunning()) {
+            return false;
+        }
+        this.migration = migration;
+        migration.start();
+        return true;
+    }
+
+    /**
+     * Gets the last migration that has been started.
+     * 
+     * @return the migration or {@code null} if none has been started
+     * @since 1.3
+     */
+    public synchronized StorageMigration getMigration() {
+        return migration;
+    }
+
+    /**
+     * Gets the executor that runs the storage's file and database access.
+     * 
+     * @return the storage executor
+     * @since 1.3
+     */
+    public StorageExecutor getStorageExecutor() {
+        return storageExecutor;
+    }
+
+    /**
+     * Gets the index of all known player names.
+     * 
+     * @return the player index
+     * @since 1.3
+     */
+    public PlayerIndex getPlayerIndex() {
+        return playerIndex;
+    }
+
+    /**
+     * Gets the scale used to convert balances to minor units.
+     * 
+     * @return the money scale
+     * @since 1.3
+     */
+    public MoneyScale getMoneyScale() {
+        return moneyScale;
+    }
+
+    /**
+     * Gets the registry that assigns numbers to world names.
+     * 
+     * @return the world registry
+     * @since 1.3
+     */
+    public WorldRegistry getWorldRegistry() {
+        return worldRegistry;
+    }
+
+    /**
+     * Gets the queue that collects changed bank accounts until they are stored.
+     * 
+     * @return the write-behind queue
+     * @since 1.3
+     */
+    public WriteBehindQueue getWriteQueue() {
+        return writeQueue;
+    }
 }
@@ -0,0 +1,139 @@
+package de.epiceric.justmoney;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.bukkit.OfflinePlayer;
+
+/**
+ * Maps the names of all known players to their UUIDs, ignoring case.
+ * <p>
+ * The index is built once in the background from the server's offline players
+ * and is updated whenever a player joins, so a player who changed their name
+ * is found by the new name.
+ * <p>
+ * The names are also kept sorted, so the names starting with a given prefix
+ * can be found without looking at all other names.
+ * 
+ * @since 1.3
+ */
+public class PlayerIndex {
+    private final JustMoney plugin;
+
+    private final Map<String, UUID> uuidsByName = new ConcurrentHashMap<>();
+    private final Map<UUID, String> namesByUuid = new ConcurrentHashMap<>();
+    private final NavigableMap<String, String> sortedNames = new ConcurrentSkipListMap<>();
+    private volatile boolean built = false;
+
+    public PlayerIndex(JustMoney plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Builds the index from the server's offline players in the background.
+     * 
+     * @since 1.3
+     */
+    public void build() {
+        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
+            long start = System.currentTimeMillis();
+            OfflinePlayer[] players = plugin.getServer().getOfflinePlayers();
+
+            for (OfflinePlayer player : players) {
+                // Names from joins during the build are newer
+                if (player.getName() != null && !namesByUuid.containsKey(player.getUniqueId())) {
+                    update(player.getUniqueId(), player.getName());
+                }
+            }
+
+            built = true;
+            plugin.getLogger().info(String.format("Indexed the names of %d players in %d ms",
+                    players.length, System.currentTimeMillis() - start));
+        });
+    }
+
+    /**
+     * Records the current name of the given player, replacing any previous name.
+     * 
+     * @param uuid the player's UUID
+     * @param name the player's current name
+     * @since 1.3
+     */
+    public void update(UUID uuid, String name) {
+        String oldName = namesByUuid.put(uuid, name);
+        if (oldName != null && !oldName.equalsIgnoreCase(name)) {
+            String oldKey = oldName.toLowerCase(Locale.ROOT);
+            if (uuidsByName.remove(oldKey, uuid)) {
+                sortedNames.remove(oldKey);
+            }
+        }
+
+        String key = name.toLowerCase(Locale.ROOT);
+        uuidsByName.put(key, uuid);
+        sortedNames.put(key, name);
+    }
+
+    /**
+     * Gets the names of known players that start with the given prefix, in alphabetical order.
+     * <p>
+     * While the index is being built, only the names that have been indexed so far are returned.
+     * 
+     * @param prefix the prefix, ignoring case
+     * @param limit the maximum amount of names to return
+     * @return the names
+     * @since 1.3
+     */
+    public List<String> getNames(String prefix, int limit) {
+        String from = prefix.toLowerCase(Locale.ROOT);
+        List<String> result = new ArrayList<>(Math.min(limit, 16));
+
+        for (String name : sortedNames.subMap(from, true, from + Character.MAX_VALUE, false).values()) {
+            if (result.size() >= limit) {
+                break;
+            }
+            result.add(name);
+        }
+        return result;
+    }
+
+    /**
+     * Gets the UUID of the player with the given name.
+     * 
+     * @param name the name, ignoring case
+     * @return the player's UUID or an empty optional if no player with that name is known
+     * @since 1.3
+     */
+    public Optional<UUID> getUniqueId(String name) {
+        if (name == null) {
+            return Optional.empty();
+        }
+
+        if (!built) {
+            // Fall back to looking through all players until the index is ready
+            return Arrays.stream(plugin.getServer().getOfflinePlayers())
+                .filter(player -> name.equalsIgnoreCase(player.getName()))
+                .map(OfflinePlayer::getUniqueId)
+                .findAny();
+        }
+        return Optional.ofNullable(uuidsByName.get(name.toLowerCase(Locale.ROOT)));
+    }
+
+    /**
+     * Gets the offline player with the given name.
+     * 
+     * @param name the name, ignoring case
+     * @return the offline player or an empty optional if no player with that name is known
+     * @since 1.3
+     */
+    public Optional<OfflinePlayer> getOfflinePlayer(String name) {
+        return getUniqueId(name).map(plugin.getServer()::getOfflinePlayer);
+    }
+}
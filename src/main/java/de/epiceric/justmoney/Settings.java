@@ -0,0 +1,175 @@
+package de.epiceric.justmoney;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+import de.epiceric.justmoney.model.MoneyScale;
+import de.epiceric.justmoney.util.CurrencyFormatter;
+
+/**
+ * An immutable snapshot of the settings that are used while the plugin is running.
+ * <p>
+ * The snapshot is read from the config once and replaced as a whole when the
+ * config is reloaded, so reading a setting never has to look up the config.
+ * 
+ * @since 1.3
+ * @see JustMoney#getSettings()
+ */
+public final class Settings {
+    private final boolean multiWorld;
+    private final double startBalance;
+    private final long minorStartBalance;
+    private final String currencySign;
+    private final String currencyFormat;
+    private final CurrencyFormatter formatter;
+    private final boolean offlineTabCompletion;
+    private final int tabCompletionLimit;
+    private final Map<String, String> messages;
+
+    private Settings(ConfigurationSection config, MoneyScale scale) {
+        this.multiWorld = config.getBoolean("multi-world");
+        this.startBalance = config.getDouble("start-balance");
+        this.minorStartBalance = scale.toMinorUnits(startBalance);
+        this.currencySign = config.getString("formatting.sign");
+        this.currencyFormat = config.getString("formatting.format");
+        this.formatter = new CurrencyFormatter(currencyFormat, currencySign, scale);
+        this.offlineTabCompletion = config.getBoolean("offline-tab-completion");
+        this.tabCompletionLimit = Math.max(1, config.getInt("tab-completion-limit", 50));
+        this.messages = Collections.unmodifiableMap(readMessages(config));
+    }
+
+    /**
+     * Reads the settings from the given config.
+     * 
+     * @param config the plugin's config
+     * @param scale the scale used to convert balances to minor units
+     * @return the settings
+     * @since 1.3
+     */
+    public static Settings fromConfig(ConfigurationSection config, MoneyScale scale) {
+        return new Settings(config, scale);
+    }
+
+    /**
+     * Reads all messages, including those that are only contained in the default config.
+     * 
+     * @param config the plugin's config
+     * @return the messages mapped by their path below "messages"
+     */
+    private static Map<String, String> readMessages(ConfigurationSection config) {
+        Set<String> keys = new LinkedHashSet<>();
+        ConfigurationSection section = config.getConfigurationSection("messages");
+        if (section != null) {
+            keys.addAll(section.getKeys(true));
+            if (section.getDefaultSection() != null) {
+                keys.addAll(section.getDefaultSection().getKeys(true));
+            }
+        }
+
+        Map<String, String> messages = new HashMap<>();
+        for (String key : keys) {
+            String message = config.getString("messages." + key);
+            if (message != null) {
+                messages.put(key, message);
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Gets whether a player's balance is different in each world.
+     * 
+     * @return whether "multi-world" is enabled
+     * @since 1.3
+     */
+    public boolean isMultiWorld() {
+        return multiWorld;
+    }
+
+    /**
+     * Gets the balance that a new player starts with.
+     * 
+     * @return the start balance
+     * @since 1.3
+     */
+    public double getStartBalance() {
+        return startBalance;
+    }
+
+    /**
+     * Gets the balance that a new player starts with in minor units.
+     * 
+     * @return the start balance in minor units
+     * @since 1.3
+     * @see MoneyScale
+     */
+    public long getMinorStartBalance() {
+        return minorStartBalance;
+    }
+
+    /**
+     * Gets the currency sign.
+     * 
+     * @return the configured "formatting.sign"
+     * @since 1.3
+     */
+    public String getCurrencySign() {
+        return currencySign;
+    }
+
+    /**
+     * Gets the format of money values with the placeholders <code>{value}</code> and <code>{sign}</code>.
+     * 
+     * @return the configured "formatting.format"
+     * @since 1.3
+     */
+    public String getCurrencyFormat() {
+        return currencyFormat;
+    }
+
+    /**
+     * Gets the formatter compiled from the currency format and sign.
+     * 
+     * @return the currency formatter
+     * @since 1.3
+     */
+    public CurrencyFormatter getFormatter() {
+        return formatter;
+    }
+
+    /**
+     * Gets whether all offline players should be considered for tab completion.
+     * 
+     * @return whether "offline-tab-completion" is enabled
+     * @since 1.3
+     */
+    public boolean isOfflineTabCompletion() {
+        return offlineTabCompletion;
+    }
+
+    /**
+     * Gets the maximum amount of offline player names suggested by tab completion.
+     * 
+     * @return the configured "tab-completion-limit"
+     * @since 1.3
+     */
+    public int getTabCompletionLimit() {
+        return tabCompletionLimit;
+    }
+
+    /**
+     * Gets the message at the given path below "messages".
+     * 
+     * @param path the path of the message, e.g. "error-messages.no-permission"
+     * @return the message or {@code null} if none is configured
+     * @since 1.3
+     */
+    public String getMessage(String path) {
+        return messages.get(path);
+    }
+}
@@ -0,0 +1,291 @@
+package de.epiceric.justmoney;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.logging.Level;
+
+import org.bukkit.ChatColor;
+import org.bukkit.command.CommandSender;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
+
+import de.epiceric.justmoney.storage.BalanceBatch;
+import de.epiceric.justmoney.storage.BankStorage;
+
+/**
+ * Copies all balances from one storage to another in the background.
+ * <p>
+ * The balances are copied in batches, so only one batch is held in memory at a
+ * time. After each batch, the progress is saved to the file "migration.yml". If
+ * the migration is stopped, e.g. by a shutdown, the same migration continues
+ * after the last saved batch when it is started again.
+ * <p>
+ * When all balances have been copied, both storages are read again and their
+ * amount of balances and total balance are compared. Changes that are made to
+ * the plugin's storage while it is being copied make this check fail, in which
+ * case the migration should be run again.
+ * <p>
+ * Balances copied to the plugin's own storage are overwritten by the accounts
+ * in memory when they change, so the plugin should be restarted with the new
+ * storage type right after a migration.
+ * 
+ * @since 1.3
+ */
+public class StorageMigration {
+    /**
+     * Minimum time in milliseconds between two progress reports.
+     */
+    private static final long PROGRESS_INTERVAL = 5000;
+
+    private final JustMoney plugin;
+    private final CommandSender sender;
+    private final String fromType;
+    private final String toType;
+    private final File progressFile;
+    private final int batchSize;
+    private final long batchDelay;
+
+    private final Thread thread;
+    private volatile boolean cancelled = false;
+    private volatile long count = 0;
+
+    /**
+     * Creates a new migration.
+     * 
+     * @param plugin the plugin
+     * @param sender the command sender that is informed about the progress
+     * @param fromType the type of the storage to copy from
+     * @param toType the type of the storage to copy to
+     * @since 1.3
+     */
+    public StorageMigration(JustMoney plugin, CommandSender sender, String fromType, String toType) {
+        this.plugin = plugin;
+        this.sender = sender;
+        this.fromType = fromType;
+        this.toType = toType;
+        this.progressFile = new File(plugin.getDataFolder(), "migration.yml");
+        this.batchSize = Math.max(1, plugin.getConfig().getInt("migration.batch-size", 500));
+        this.batchDelay = Math.max(0, plugin.getConfig().getLong("migration.batch-delay", 50));
+
+        this.thread = new Thread(this::run, "JustMoney Migration");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Starts the migration on its own thread.
+     */
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Gets whether the migration is still running.
+     * 
+     * @return whether the migration is running
+     * @since 1.3
+     */
+    public boolean isRunning() {
+        return thread.isAlive();
+    }
+
+    /**
+     * Gets the amount of accounts that have been copied so far.
+     * 
+     * @return the amount of copied accounts
+     * @since 1.3
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Stops the migration after the current batch and waits for it to stop.
+     * <p>
+     * The progress is kept, so the migration continues when it is started again.
+     * 
+     * @since 1.3
+     */
+    public void cancel() {
+        cancelled = true;
+        try {
+            thread.join(30000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        boolean sourceLive = fromType.equals(plugin.getStorageType());
+        boolean targetLive = toType.equals(plugin.getStorageType());
+        BankStorage source = sourceLive ? plugin.getStorage() : plugin.createStorage(fromType);
+        BankStorage target = targetLive ? plugin.getStorage() : plugin.createStorage(toType);
+
+        try {
+            if (sourceLive) {
+                // Copy the latest balances, not only those that have already been written
+                plugin.getWriteQueue().flush();
+            }
+
+            String position = null;
+            YamlConfiguration progress = YamlConfiguration.loadConfiguration(progressFile);
+            if (fromType.equals(progress.getString("from")) && toType.equals(progress.getString("to"))) {
+                position = progress.getString("position");
+                count = progress.getLong("count");
+                report("migration-resumed", fromType, toType, count);
+            } else {
+                report("migration-started", fromType, toType);
+            }
+
+            long lastReport = System.currentTimeMillis();
+            boolean done = false;
+            while (!cancelled) {
+                BalanceBatch batch = source.readBalances(position, batchSize).join();
+                if (!batch.getBalances().isEmpty()) {
+                    target.writeBalances(batch.getBalances()).join();
+                }
+
+                count += batch.getBalances().size();
+                position = batch.getNextPosition();
+                if (batch.isLast()) {
+                    done = true;
+                    break;
+                }
+                saveProgress(position);
+
+                if (System.currentTimeMillis() - lastReport >= PROGRESS_INTERVAL) {
+                    lastReport = System.currentTimeMillis();
+                    report("migration-progress", count);
+                }
+
+                if (batchDelay > 0) {
+                    try {
+                        Thread.sleep(batchDelay);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+
+            if (!done) {
+                plugin.getLogger().info(String.format("Paused migration from %s to %s after %d accounts",
+                        fromType, toType, count));
+                return;
+            }
+
+            // A repeated migration has to copy everything again
+            if (progressFile.exists() && !progressFile.delete()) {
+                plugin.getLogger().warning("Failed to delete the migration progress file");
+            }
+
+            long[] sourceTotals = getTotals(source);
+            long[] targetTotals = getTotals(target);
+            if (cancelled) {
+                return;
+            }
+            if (sourceTotals[0] != targetTotals[0] || sourceTotals[1] != targetTotals[1]) {
+                plugin.getLogger().warning(String.format("Migration check failed: %s has %d balances with a total of %d, "
+                        + "%s has %d balances with a total of %d (in minor units)", fromType, sourceTotals[0],
+                        sourceTotals[1], toType, targetTotals[0], targetTotals[1]));
+                report("migration-verify-failed", fromType, toType);
+                return;
+            }
+
+            report("migration-complete", count, fromType, toType);
+        } catch (CompletionException ex) {
+            plugin.getLogger().log(Level.SEVERE, "Failed to migrate from " + fromType + " to " + toType, ex.getCause());
+            reportError("migration-failed", ex.getCause().getMessage());
+        } finally {
+            if (!sourceLive) {
+                source.close();
+            }
+            if (!targetLive) {
+                target.close();
+            }
+        }
+    }
+
+    /**
+     * Reads all balances of the given storage and counts them.
+     * 
+     * @param storage the storage
+     * @return the amount of balances and the sum of all balances in minor units
+     */
+    private long[] getTotals(BankStorage storage) {
+        long[] totals = new long[2];
+        String position = null;
+        BalanceBatch batch;
+        do {
+            batch = storage.readBalances(position, batchSize).join();
+            for (Map<String, Double> balances : batch.getBalances().values()) {
+                for (double balance : balances.values()) {
+                    totals[0]++;
+                    totals[1] += plugin.getMoneyScale().toMinorUnits(balance);
+                }
+            }
+            position = batch.getNextPosition();
+        } while (!batch.isLast() && !cancelled);
+        return totals;
+    }
+
+    /**
+     * Saves the position after the last copied batch.
+     * 
+     * @param position the position to continue at
+     */
+    private void saveProgress(String position) {
+        YamlConfiguration progress = new YamlConfiguration();
+        progress.set("from", fromType);
+        progress.set("to", toType);
+        progress.set("position", position);
+        progress.set("count", count);
+        try {
+            progress.save(progressFile);
+        } catch (IOException ex) {
+            plugin.getLogger().log(Level.WARNING, "Failed to save the migration progress", ex);
+        }
+    }
+
+    /**
+     * Reports the given message.
+     * 
+     * @param message the name of the message
+     * @param args the arguments to fill the placeholders
+     */
+    private void report(String message, Object... args) {
+        send(plugin.getSettings().getMessage(message), args);
+    }
+
+    /**
+     * Reports the given error message.
+     * 
+     * @param message the name of the error message
+     * @param args the arguments to fill the placeholders
+     */
+    private void reportError(String message, Object... args) {
+        send(plugin.getSettings().getMessage("error-messages." + message), args);
+    }
+
+    /**
+     * Logs the given message and sends it to the command sender if it is an online player.
+     * 
+     * @param message the message
+     * @param args the arguments to fill the placeholders
+     */
+    private void send(String message, Object... args) {
+        String text = MessageFormat.format(message, args);
+        plugin.getLogger().info(ChatColor.stripColor(text));
+
+        // The console already sees the log
+        if (sender instanceof Player && plugin.isEnabled()) {
+            plugin.getServer().getScheduler().runTask(plugin, () -> {
+                if (((Player) sender).isOnline()) {
+                    sender.sendMessage(text);
+                }
+            });
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package de.epiceric.justmoney;
 
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
@@ -8,6 +7,9 @@ import java.util.Optional;
 import org.bukkit.OfflinePlayer;
 import org.bukkit.World;
 
+import de.epiceric.justmoney.exception.NotEnoughMoneyException;
+import de.epiceric.justmoney.model.BankAccount;
+
 import net.milkbowl.vault.economy.Economy;
 import net.milkbowl.vault.economy.EconomyResponse;
 import net.milkbowl.vault.economy.EconomyResponse.ResponseType;
@@ -33,9 +35,7 @@ public final class VaultEconomy implements Economy {
      * @return the offline player or an empty optional if none exists
      */
     private Optional<OfflinePlayer> getOfflinePlayer(String name) {
-        return Arrays.stream(plugin.getServer().getOfflinePlayers())
-            .filter(player -> player.getName().equalsIgnoreCase(name))
-            .findAny();
+        return plugin.getPlayerIndex().getOfflinePlayer(name);
     }
 
     /**
@@ -52,12 +52,12 @@ public final class VaultEconomy implements Economy {
 
     @Override
     public String currencyNamePlural() {
-        return plugin.getConfig().getString("formatting.sign");
+        return plugin.getSettings().getCurrencySign();
     }
 
     @Override
     public String currencyNameSingular() {
-        return plugin.getConfig().getString("formatting.sign");
+        return plugin.getSettings().getCurrencySign();
     }
 
     @Override
@@ -67,7 +67,7 @@ public final class VaultEconomy implements Economy {
 
     @Override
     public int fractionalDigits() {
-        return plugin.getConfig().getInt("formatting.decimal-places");
+        return plugin.getMoneyScale().getDecimalPlaces();
     }
 
     @Override
@@ -177,8 +177,13 @@ public final class VaultEconomy implements Economy {
 
     @Override
     public EconomyResponse depositPlayer(OfflinePlayer player, double amount) {
-        double balance = manager.getBankAccount(player).deposit(amount);
-        return new EconomyResponse(amount, balance, ResponseType.SUCCESS, null);
+        BankAccount account = manager.getBankAccount(player);
+        try {
+            double balance = account.deposit(amount);
+            return new EconomyResponse(amount, balance, ResponseType.SUCCESS, null);
+        } catch (ArithmeticException ex) {
+            return new EconomyResponse(0, account.getBalance(), ResponseType.FAILURE, "Balance limit exceeded");
+        }
     }
 
     @Override
@@ -192,8 +197,13 @@ public final class VaultEconomy implements Economy {
     public EconomyResponse depositPlayer(OfflinePlayer player, String worldName, double amount) {
         return getWorld(worldName)
             .map(world -> {
-                double balance = manager.getBankAccount(player).deposit(world, amount);
-                return new EconomyResponse(amount, balance, ResponseType.SUCCESS, null);
+                BankAccount account = manager.getBankAccount(player);
+                try {
+                    double balance = account.deposit(world, amount);
+                    return new EconomyResponse(amount, balance, ResponseType.SUCCESS, null);
+                } catch (ArithmeticException ex) {
+                    return new EconomyResponse(0, account.getBalance(world), ResponseType.FAILURE, "Balance limit exceeded");
+                }
             })
             .orElse(new EconomyResponse(0, 0, ResponseType.FAILURE, "Failed to find world named " + worldName));
     }
@@ -273,12 +283,15 @@ public final class VaultEconomy implements Economy {
 
     @Override
     public EconomyResponse withdrawPlayer(OfflinePlayer player, double amount) {
-        double balance = getBalance(player);
-        if (balance < amount) {
-            return new EconomyResponse(0, balance, ResponseType.FAILURE, "Not enough money");
+        BankAccount account = manager.getBankAccount(player);
+        try {
+            double newBalance = account.withdraw(amount);
+            return new EconomyResponse(amount, newBalance, ResponseType.SUCCESS, null);
+        } catch (NotEnoughMoneyException ex) {
+            return new EconomyResponse(0, account.getBalance(), ResponseType.FAILURE, "Not enough money");
+        } catch (ArithmeticException ex) {
+            return new EconomyResponse(0, account.getBalance(), ResponseType.FAILURE, "Balance limit exceeded");
         }
-        double newBalance = manager.getBankAccount(player).withdraw(amount);
-        return new EconomyResponse(amount, newBalance, ResponseType.SUCCESS, null);
     }
 
     @Override
@@ -292,12 +305,15 @@ public final class VaultEconomy implements Economy {
     public EconomyResponse withdrawPlayer(OfflinePlayer player, String worldName, double amount) {
         return getWorld(worldName)
             .map(world -> {
-                double balance = getBalance(player, worldName);
-                if (balance < amount) {
-                    return new EconomyResponse(0, balance, ResponseType.FAILURE, "Not enough money");
+                BankAccount account = manager.getBankAccount(player);
+                try {
+                    double newBalance = account.withdraw(world, amount);
+                    return new EconomyResponse(amount, newBalance, ResponseType.SUCCESS, null);
+                } catch (NotEnoughMoneyException ex) {
+                    return new EconomyResponse(0, account.getBalance(world), ResponseType.FAILURE, "Not enough money");
+                } catch (ArithmeticException ex) {
+                    return new EconomyResponse(0, account.getBalance(world), ResponseType.FAILURE, "Balance limit exceeded");
                 }
-                double newBalance = manager.getBankAccount(player).withdraw(world, amount);
-                return new EconomyResponse(amount, newBalance, ResponseType.SUCCESS, null);
             })
             .orElse(new EconomyResponse(0, 0, ResponseType.FAILURE, "Failed to find world named " + worldName));
     }
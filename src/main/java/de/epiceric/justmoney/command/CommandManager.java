@@ -13,6 +13,8 @@ import org.bukkit.entity.Player;
 import de.epiceric.justmoney.JustMoney;
 import de.epiceric.justmoney.command.subcommand.GiveSubCommand;
 import de.epiceric.justmoney.command.subcommand.HelpSubCommand;
+import de.epiceric.justmoney.command.subcommand.MigrateSubCommand;
+import de.epiceric.justmoney.command.subcommand.ReloadSubCommand;
 import de.epiceric.justmoney.command.subcommand.SendSubCommand;
 import de.epiceric.justmoney.command.subcommand.SetSubCommand;
 import de.epiceric.justmoney.command.subcommand.SubCommand;
@@ -35,6 +37,8 @@ public class CommandManager implements TabExecutor {
         this.subCommands.add(new SetSubCommand(plugin));
         this.subCommands.add(new GiveSubCommand(plugin));
         this.subCommands.add(new TakeSubCommand(plugin));
+        this.subCommands.add(new ReloadSubCommand(plugin));
+        this.subCommands.add(new MigrateSubCommand(plugin));
         this.subCommands.add(helpCommand);
     }
 
@@ -175,13 +175,11 @@ public class MoneyCommand extends SubCommand {
             .map(World::getName)
             .collect(Collectors.toSet());
 
-        List<String> players = Util.completePlayer(plugin, null);
-
         switch (args.length) {
             case 1: {
                 List<String> result = new ArrayList<>();
                 if (isMultiWorld()) result.addAll(worlds);
-                if (hasPermissionViewOther) result.addAll(players);
+                if (hasPermissionViewOther) result.addAll(Util.completePlayer(plugin, null, args[0]));
                 return result;
             }
             case 2: {
@@ -199,7 +197,7 @@ public class MoneyCommand extends SubCommand {
         switch (args.length) {
             case 1: {
                 if (sender.hasPermission("justmoney.view.other") && isMultiWorld()) {
-                    return Util.completePlayer(plugin, null);
+                    return Util.completePlayer(plugin, null, args[0]);
                 }
             }
             case 2: {
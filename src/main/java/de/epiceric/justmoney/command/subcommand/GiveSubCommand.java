@@ -61,6 +61,8 @@ public class GiveSubCommand extends SetSubCommand {
                 }
             } catch (NumberFormatException ex) {
                 sendMessage(player, getErrorMessage("cannot-parse-amount"), args[1]);
+            } catch (ArithmeticException ex) {
+                sendMessage(player, getErrorMessage("balance-limit"));
             }
             return true;
         }
@@ -121,7 +123,12 @@ public class GiveSubCommand extends SetSubCommand {
                 return true;
             }
 
-            account.deposit(world, amount);
+            try {
+                account.deposit(world, amount);
+            } catch (ArithmeticException ex) {
+                sendMessage(player, getErrorMessage("balance-limit"));
+                return true;
+            }
 
             if (account.getOwner().getName().equals(player.getName())) {
                 sendMessage(player, getMessage("give-your-balance-in-world"),
@@ -135,7 +142,12 @@ public class GiveSubCommand extends SetSubCommand {
             }
             
         } else {
-            account.deposit(amount);
+            try {
+                account.deposit(amount);
+            } catch (ArithmeticException ex) {
+                sendMessage(player, getErrorMessage("balance-limit"));
+                return true;
+            }
 
             if (account.getOwner().getName().equals(player.getName())) {
                 sendMessage(player, getMessage("give-your-balance"), plugin.format(amount));
@@ -194,7 +206,12 @@ public class GiveSubCommand extends SetSubCommand {
                 return true;
             }
 
-            account.deposit(world, amount);
+            try {
+                account.deposit(world, amount);
+            } catch (ArithmeticException ex) {
+                sendMessage(sender, getErrorMessage("balance-limit"));
+                return true;
+            }
 
             sendMessage(sender, getMessage("give-player-balance-in-world"),
                     account.getOwner().getName(), world.getName(), plugin.format(amount));
@@ -202,7 +219,12 @@ public class GiveSubCommand extends SetSubCommand {
             accountOwner.ifPresent(owner -> sendMessage(owner, getMessage("give-your-balance-in-world"),
                     world.getName(), plugin.format(amount)));
         } else {
-            account.deposit(amount);
+            try {
+                account.deposit(amount);
+            } catch (ArithmeticException ex) {
+                sendMessage(sender, getErrorMessage("balance-limit"));
+                return true;
+            }
 
             sendMessage(sender, getMessage("give-player-balance"),
                     account.getOwner().getName(), plugin.format(amount));
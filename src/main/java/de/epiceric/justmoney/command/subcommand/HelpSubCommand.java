@@ -23,7 +23,7 @@ public class HelpSubCommand extends SubCommand {
      * @since 1.1
      */
     private String getHelpMessage(String configName) {
-        return plugin.getConfig().getString("messages.help-messages." + configName);
+        return plugin.getSettings().getMessage("help-messages." + configName);
     }
 
     /**
@@ -87,6 +87,12 @@ public class HelpSubCommand extends SubCommand {
         if (player.hasPermission("justmoney.set.other")) {
             sendCommand(player, label, "take <player> <amount>", getHelpMessage("take-player-balance"));
         }
+        if (player.hasPermission("justmoney.reload")) {
+            sendMessage(player, "§6/{0} reload: §f{1}", label, getHelpMessage("reload"));
+        }
+        if (player.hasPermission("justmoney.migrate")) {
+            sendMessage(player, "§6/{0} migrate <from> <to>: §f{1}", label, getHelpMessage("migrate"));
+        }
         sendMessage(player, "§6/{0} help: §f{1}", label, getHelpMessage("help"));
 
         return true;
@@ -103,6 +109,12 @@ public class HelpSubCommand extends SubCommand {
             sendCommand(sender, label, "give <player> <amount>", getHelpMessage("give-player-balance"));
             sendCommand(sender, label, "take <player> <amount>", getHelpMessage("take-player-balance"));
         }
+        if (sender.hasPermission("justmoney.reload")) {
+            sendMessage(sender, "§6/{0} reload: §f{1}", label, getHelpMessage("reload"));
+        }
+        if (sender.hasPermission("justmoney.migrate")) {
+            sendMessage(sender, "§6/{0} migrate <from> <to>: §f{1}", label, getHelpMessage("migrate"));
+        }
         sendMessage(sender, "§6/{0} help: §f{1}", label, getHelpMessage("help"));
 
         return true;
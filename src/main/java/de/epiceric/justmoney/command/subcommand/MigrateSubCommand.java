@@ -0,0 +1,80 @@
+package de.epiceric.justmoney.command.subcommand;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+import de.epiceric.justmoney.JustMoney;
+import de.epiceric.justmoney.StorageMigration;
+
+/**
+ * The executor for the "/money migrate" sub command.
+ * 
+ * @since 1.3
+ */
+public class MigrateSubCommand extends SubCommand {
+    private static final List<String> STORAGE_TYPES = Arrays.asList("flatfile", "log", "sqlite", "mysql");
+
+    public MigrateSubCommand(JustMoney plugin) {
+        super("migrate", plugin);
+    }
+
+    @Override
+    public boolean isPermitted(CommandSender sender) {
+        return sender.hasPermission("justmoney.migrate");
+    }
+
+    @Override
+    public boolean onExecute(Player player, String label, String... args) {
+        return onExecute((CommandSender) player, label, args);
+    }
+
+    @Override
+    public boolean onExecute(CommandSender sender, String label, String... args) {
+        if (args.length != 2) {
+            return false;
+        }
+
+        if (!isPermitted(sender)) {
+            sendMessage(sender, getErrorMessage("no-permission"));
+            return true;
+        }
+
+        String from = args[0].toLowerCase(Locale.ROOT);
+        String to = args[1].toLowerCase(Locale.ROOT);
+
+        for (String type : new String[] { from, to }) {
+            if (!STORAGE_TYPES.contains(type)) {
+                sendMessage(sender, getErrorMessage("invalid-storage-type"), type);
+                return true;
+            }
+        }
+
+        if (from.equals(to)) {
+            sendMessage(sender, getErrorMessage("migration-same-storage"));
+            return true;
+        }
+
+        if (!plugin.startMigration(new StorageMigration(plugin, sender, from, to))) {
+            sendMessage(sender, getErrorMessage("migration-running"), plugin.getMigration().getCount());
+        }
+        return true;
+    }
+
+    @Override
+    public List<String> onTabComplete(Player player, String... args) {
+        return onTabComplete((CommandSender) player, args);
+    }
+
+    @Override
+    public List<String> onTabComplete(CommandSender sender, String... args) {
+        if (!isPermitted(sender) || args.length > 2) {
+            return Collections.emptyList();
+        }
+        return STORAGE_TYPES;
+    }
+}
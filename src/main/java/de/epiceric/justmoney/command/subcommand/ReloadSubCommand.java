@@ -0,0 +1,43 @@
+package de.epiceric.justmoney.command.subcommand;
+
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+import de.epiceric.justmoney.JustMoney;
+
+/**
+ * The executor for the "/money reload" sub command.
+ * 
+ * @since 1.3
+ */
+public class ReloadSubCommand extends SubCommand {
+    public ReloadSubCommand(JustMoney plugin) {
+        super("reload", plugin);
+    }
+
+    @Override
+    public boolean isPermitted(CommandSender sender) {
+        return sender.hasPermission("justmoney.reload");
+    }
+
+    @Override
+    public boolean onExecute(Player player, String label, String... args) {
+        return onExecute((CommandSender) player, label, args);
+    }
+
+    @Override
+    public boolean onExecute(CommandSender sender, String label, String... args) {
+        if (args.length != 0) {
+            return false;
+        }
+
+        if (!isPermitted(sender)) {
+            sendMessage(sender, getErrorMessage("no-permission"));
+            return true;
+        }
+
+        plugin.reloadSettings();
+        sendMessage(sender, getMessage("reloaded"));
+        return true;
+    }
+}
@@ -70,8 +70,6 @@ public class SendSubCommand extends SubCommand {
             return true;
         }
 
-        BankAccount sender = plugin.getBankManager().getBankAccount(player);
-
         try {
             if (isMultiWorld()) {
                 World world = player.getWorld();
@@ -82,11 +80,9 @@ public class SendSubCommand extends SubCommand {
                     sendMessage(player, getErrorMessage("cannot-find-world"), args[2]);
                     return true;
                 }
-                sender.withdraw(world, amount);
-                receiver.deposit(world, amount);
+                plugin.getBankManager().transfer(player, receiver.getOwner(), world, amount);
             } else {
-                sender.withdraw(amount);
-                receiver.deposit(amount);
+                plugin.getBankManager().transfer(player, receiver.getOwner(), amount);
             }
 
             sendMessage(player, getMessage("sent-money-to"),
@@ -98,6 +94,8 @@ public class SendSubCommand extends SubCommand {
             }
         } catch (NotEnoughMoneyException ex) {
             sendMessage(player, getErrorMessage("not-enough-money"));
+        } catch (ArithmeticException ex) {
+            sendMessage(player, getErrorMessage("balance-limit"));
         }
 
         return true;
@@ -107,9 +105,9 @@ public class SendSubCommand extends SubCommand {
     public List<String> onTabComplete(Player player, String... args) {
         switch (args.length) {
             case 1:
-                return Util.completePlayer(plugin, player);
+                return Util.completePlayer(plugin, player, args[0]);
             case 2:
-                int decimals = plugin.getConfig().getInt("formatting.decimal-places");
+                int decimals = plugin.getMoneyScale().getDecimalPlaces();
                 return Util.completeAmount(decimals, args[1]);
             case 3:
                 if (isMultiWorld()) {
@@ -66,6 +66,8 @@ public class SetSubCommand extends SubCommand {
                 }
             } catch (NumberFormatException ex) {
                 sendMessage(player, getErrorMessage("cannot-parse-balance"), args[1]);
+            } catch (ArithmeticException ex) {
+                sendMessage(player, getErrorMessage("balance-limit"));
             }
             return true;
         }
@@ -126,7 +128,12 @@ public class SetSubCommand extends SubCommand {
                 return true;
             }
 
-            account.setBalance(world, newBalance);
+            try {
+                account.setBalance(world, newBalance);
+            } catch (ArithmeticException ex) {
+                sendMessage(player, getErrorMessage("balance-limit"));
+                return true;
+            }
 
             if (account.getOwner().getName().equals(player.getName())) {
                 sendMessage(player, getMessage("set-your-balance-in-world"),
@@ -140,7 +147,12 @@ public class SetSubCommand extends SubCommand {
             }
             
         } else {
-            account.setBalance(newBalance);
+            try {
+                account.setBalance(newBalance);
+            } catch (ArithmeticException ex) {
+                sendMessage(player, getErrorMessage("balance-limit"));
+                return true;
+            }
 
             if (account.getOwner().getName().equals(player.getName())) {
                 sendMessage(player, getMessage("set-your-balance"), plugin.format(newBalance));
@@ -199,7 +211,12 @@ public class SetSubCommand extends SubCommand {
                 return true;
             }
 
-            account.setBalance(world, newBalance);
+            try {
+                account.setBalance(world, newBalance);
+            } catch (ArithmeticException ex) {
+                sendMessage(sender, getErrorMessage("balance-limit"));
+                return true;
+            }
 
             sendMessage(sender, getMessage("set-player-balance-in-world"),
                     account.getOwner().getName(), world.getName(), plugin.format(newBalance));
@@ -207,7 +224,12 @@ public class SetSubCommand extends SubCommand {
             accountOwner.ifPresent(owner -> sendMessage(owner, getMessage("set-your-balance-in-world"),
                     world.getName(), plugin.format(newBalance)));
         } else {
-            account.setBalance(newBalance);
+            try {
+                account.setBalance(newBalance);
+            } catch (ArithmeticException ex) {
+                sendMessage(sender, getErrorMessage("balance-limit"));
+                return true;
+            }
 
             sendMessage(sender, getMessage("set-player-balance"),
                     account.getOwner().getName(), plugin.format(newBalance));
@@ -227,13 +249,13 @@ public class SetSubCommand extends SubCommand {
 
         boolean hasPermissionSetSelf = player.hasPermission("justmoney.set.self");
         boolean hasPermissionSetOther = player.hasPermission("justmoney.set.other");
-        int decimals = plugin.getConfig().getInt("formatting.decimal-places");
+        int decimals = plugin.getMoneyScale().getDecimalPlaces();
 
         switch (args.length) {
             case 1: {
                 List<String> result = new ArrayList<>();
                 if (hasPermissionSetSelf) {
-                    result.addAll(Util.completePlayer(plugin, null));
+                    result.addAll(Util.completePlayer(plugin, null, args[0]));
                 }
                 if (hasPermissionSetOther && result.isEmpty()) {
                     // Only add amount completions if nothing else has been added
@@ -293,9 +315,9 @@ public class SetSubCommand extends SubCommand {
 
         switch (args.length) {
             case 1:
-                return Util.completePlayer(plugin, null);
+                return Util.completePlayer(plugin, null, args[0]);
             case 2:
-                return Util.completeAmount(plugin.getConfig().getInt("formatting.decimal-places"), args[1]);
+                return Util.completeAmount(plugin.getMoneyScale().getDecimalPlaces(), args[1]);
             case 3:
                 if (isMultiWorld()) {
                     return plugin.getServer().getWorlds().stream()
@@ -1,7 +1,6 @@
 package de.epiceric.justmoney.command.subcommand;
 
 import java.text.MessageFormat;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -33,7 +32,7 @@ public abstract class SubCommand {
      * @since 1.1
      */
     protected final String getMessage(String configName) {
-        return plugin.getConfig().getString("messages." + configName);
+        return plugin.getSettings().getMessage(configName);
     }
 
     /**
@@ -44,7 +43,7 @@ public abstract class SubCommand {
      * @since 1.1
      */
     protected final String getErrorMessage(String configName) {
-        return plugin.getConfig().getString("messages.error-messages." + configName);
+        return plugin.getSettings().getMessage("error-messages." + configName);
     }
 
     /**
@@ -69,9 +68,7 @@ public abstract class SubCommand {
      * @since 1.0
      */
     protected final OfflinePlayer getOfflinePlayer(String name) {
-        return Arrays.stream(plugin.getServer().getOfflinePlayers())
-            .filter(player -> player.getName().equalsIgnoreCase(name))
-            .findAny().orElse(null);
+        return plugin.getPlayerIndex().getOfflinePlayer(name).orElse(null);
     }
 
     /**
@@ -81,7 +78,7 @@ public abstract class SubCommand {
      * @since 1.0
      */
     protected final boolean isMultiWorld() {
-        return plugin.getConfig().getBoolean("multi-world");
+        return plugin.getSettings().isMultiWorld();
     }
 
     /**
@@ -63,6 +63,8 @@ public class TakeSubCommand extends SetSubCommand {
                     }
                 } catch (NotEnoughMoneyException ex) {
                     sendMessage(player, getErrorMessage("cannot-take"));
+                } catch (ArithmeticException ex) {
+                    sendMessage(player, getErrorMessage("balance-limit"));
                 }
             } catch (NumberFormatException ex) {
                 sendMessage(player, getErrorMessage("cannot-parse-amount"), args[1]);
@@ -141,6 +143,8 @@ public class TakeSubCommand extends SetSubCommand {
                 }
             } catch (NotEnoughMoneyException ex) {
                 sendMessage(player, getErrorMessage("cannot-take"));
+            } catch (ArithmeticException ex) {
+                sendMessage(player, getErrorMessage("balance-limit"));
             }
         } else {
             try {
@@ -157,6 +161,8 @@ public class TakeSubCommand extends SetSubCommand {
                 }
             } catch (NotEnoughMoneyException ex) {
                 sendMessage(player, getErrorMessage("cannot-take"));
+            } catch (ArithmeticException ex) {
+                sendMessage(player, getErrorMessage("balance-limit"));
             }
         }
 
@@ -216,6 +222,8 @@ public class TakeSubCommand extends SetSubCommand {
                         world.getName(), plugin.format(amount)));
             } catch (NotEnoughMoneyException ex) {
                 sendMessage(sender, getErrorMessage("cannot-take"));
+            } catch (ArithmeticException ex) {
+                sendMessage(sender, getErrorMessage("balance-limit"));
             }
         } else {
             try {
@@ -228,6 +236,8 @@ public class TakeSubCommand extends SetSubCommand {
                         plugin.format(amount)));
             } catch (NotEnoughMoneyException ex) {
                 sendMessage(sender, getErrorMessage("cannot-take"));
+            } catch (ArithmeticException ex) {
+                sendMessage(sender, getErrorMessage("balance-limit"));
             }
         }
 
@@ -0,0 +1,57 @@
+package de.epiceric.justmoney.listener;
+
+import java.util.Collections;
+import java.util.concurrent.CompletionException;
+import java.util.logging.Level;
+
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+
+import de.epiceric.justmoney.JustMoney;
+
+/**
+ * Listener for player events.
+ * 
+ * @since 1.3
+ */
+public class PlayerListener implements Listener {
+    private final JustMoney plugin;
+
+    public PlayerListener(JustMoney plugin) {
+        this.plugin = plugin;
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onAsyncPlayerPreLogin(AsyncPlayerPreLoginEvent e) {
+        if (e.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED) {
+            return;
+        }
+
+        // This event is called off the main thread, so the account can be loaded before the player joins
+        try {
+            plugin.getBankManager().prefetchAccount(e.getUniqueId());
+        } catch (CompletionException ex) {
+            plugin.getLogger().log(Level.SEVERE, "Failed to load bank account of " + e.getName(), ex.getCause());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.LOWEST)
+    public void onPlayerJoin(PlayerJoinEvent e) {
+        // The player might have changed their name
+        plugin.getPlayerIndex().update(e.getPlayer().getUniqueId(), e.getPlayer().getName());
+
+        if (plugin.getBankManager().completePrefetch(e.getPlayer().getUniqueId())) {
+            return;
+        }
+
+        // Load the account in the background, so it is in memory when it is needed
+        plugin.getBankManager().preloadAccounts(Collections.singleton(e.getPlayer().getUniqueId()))
+            .exceptionally(ex -> {
+                plugin.getLogger().log(Level.SEVERE, "Failed to load bank account of " + e.getPlayer().getName(), ex);
+                return null;
+            });
+    }
+}
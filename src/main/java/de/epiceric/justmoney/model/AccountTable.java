@@ -0,0 +1,590 @@
+package de.epiceric.justmoney.model;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A compact hash table holding the balances of all bank accounts in memory.
+ * <p>
+ * Accounts are keyed by the two longs of their owner's UUID in open-addressing
+ * arrays with linear probing. The balances are held inline in one column of
+ * longs per world, and the change flags in one column of bytes per world. With
+ * a single world, this takes about 25 bytes per slot, or between 31 and 63
+ * bytes per account depending on the fill level. {@link BankAccount} objects
+ * are only created as views when an account is used.
+ * <p>
+ * Changing the balances of an account requires holding the account's lock,
+ * see {@link #getLock(UUID)}. Adding and removing accounts exclusively locks
+ * the whole table, which is rare compared to balance changes. Reads first try
+ * an optimistic read of the table and only take its shared lock if an account
+ * has been added or removed meanwhile.
+ *
+ * @since 1.3
+ */
+public final class AccountTable {
+    /**
+     * Marks worlds in which the balance has never been set.
+     */
+    static final long UNSET = Long.MIN_VALUE;
+
+    /**
+     * Amount of account locks, must be a power of two.
+     */
+    private static final int LOCK_STRIPES = 64;
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final double MAX_LOAD_FACTOR = 0.8;
+
+    private final StampedLock structureLock = new StampedLock();
+    private final Lock[] locks = new Lock[LOCK_STRIPES];
+
+    // Guarded by the structure lock
+    private long[] mostSigBits;
+    private long[] leastSigBits;
+    private long[] used;
+    private long[][] balances = new long[0][];
+    private byte[][] changed = new byte[0][];
+    private int mask;
+    private int threshold;
+    private int size;
+
+    public AccountTable() {
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Mixes the bits of the given UUID into a well-distributed hash.
+     */
+    private static int hash(long mostSigBits, long leastSigBits) {
+        long hash = mostSigBits ^ leastSigBits;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return (int) hash;
+    }
+
+    /**
+     * Gets the lock that must be held while reading or changing the balances of the given player's account.
+     *
+     * @param uuid the account owner's UUID
+     * @return the lock
+     * @since 1.3
+     */
+    public Lock getLock(UUID uuid) {
+        return locks[getStripe(uuid)];
+    }
+
+    /**
+     * Gets the index of the lock of the given player's account, so multiple locks can be taken in order.
+     *
+     * @param uuid the account owner's UUID
+     * @return the lock index
+     */
+    int getStripe(UUID uuid) {
+        return (hash(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()) >>> 26) & (LOCK_STRIPES - 1);
+    }
+
+    /**
+     * Gets the lock with the given index.
+     *
+     * @param stripe the lock index
+     * @return the lock
+     */
+    Lock getLock(int stripe) {
+        return locks[stripe];
+    }
+
+    /**
+     * Gets the amount of accounts in the table.
+     *
+     * @return the amount of accounts
+     * @since 1.3
+     */
+    public int size() {
+        long stamp = structureLock.tryOptimisticRead();
+        int count = size;
+        if (structureLock.validate(stamp)) {
+            return count;
+        }
+
+        stamp = structureLock.readLock();
+        try {
+            return size;
+        } finally {
+            structureLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Gets whether the given player's account is in the table.
+     *
+     * @param uuid the account owner's UUID
+     * @return whether the account is in the table
+     * @since 1.3
+     */
+    public boolean contains(UUID uuid) {
+        long stamp = structureLock.tryOptimisticRead();
+        int slot = optimisticIndexOf(uuid);
+        if (structureLock.validate(stamp)) {
+            return slot >= 0;
+        }
+
+        stamp = structureLock.readLock();
+        try {
+            return indexOf(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()) >= 0;
+        } finally {
+            structureLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Adds the given player's account with the given balances, unless it is already in the table.
+     *
+     * @param uuid the account owner's UUID
+     * @param values the balances in minor units indexed by world number, {@link #UNSET} for worlds without balance
+     * @return whether the account has been added
+     */
+    boolean insert(UUID uuid, long[] values) {
+        long mostSig = uuid.getMostSignificantBits();
+        long leastSig = uuid.getLeastSignificantBits();
+
+        long stamp = structureLock.writeLock();
+        try {
+            if (indexOf(mostSig, leastSig) >= 0) {
+                return false;
+            }
+
+            ensureColumns(values.length);
+            if (size >= threshold) {
+                allocate((mask + 1) * 2);
+            }
+
+            int slot = hash(mostSig, leastSig) & mask;
+            while (isUsed(slot)) {
+                slot = (slot + 1) & mask;
+            }
+
+            mostSigBits[slot] = mostSig;
+            leastSigBits[slot] = leastSig;
+            used[slot >>> 6] |= 1L << slot;
+            for (int world = 0; world < balances.length; world++) {
+                balances[world][slot] = world < values.length ? values[world] : UNSET;
+                changed[world][slot] = 0;
+            }
+            size++;
+            return true;
+        } finally {
+            structureLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes the given player's account, unless it has changes that have not been stored.
+     *
+     * @param uuid the account owner's UUID
+     * @return whether the account has been removed
+     * @since 1.3
+     */
+    public boolean removeIfUnchanged(UUID uuid) {
+        Lock lock = getLock(uuid);
+        lock.lock();
+        try {
+            long stamp = structureLock.writeLock();
+            try {
+                int slot = indexOf(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+                if (slot < 0 || hasChanges(slot)) {
+                    return false;
+                }
+                delete(slot);
+                return true;
+            } finally {
+                structureLock.unlockWrite(stamp);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the balance of the given account in the given world.
+     * <p>
+     * The caller must hold the account's lock and the account must be in the table.
+     *
+     * @param uuid the account owner's UUID
+     * @param world the world's number
+     * @return the balance in minor units or {@link #UNSET} if it has never been set
+     */
+    long getBalance(UUID uuid, int world) {
+        long stamp = structureLock.tryOptimisticRead();
+        long[][] columns = balances;
+        int slot = optimisticIndexOf(uuid);
+        if (slot >= 0) {
+            long[] column = world < columns.length ? columns[world] : null;
+            long balance = column == null ? UNSET : slot < column.length ? column[slot] : 0;
+            if (structureLock.validate(stamp)) {
+                return balance;
+            }
+        }
+
+        stamp = structureLock.readLock();
+        try {
+            slot = slotOf(uuid);
+            return world < balances.length ? balances[world][slot] : UNSET;
+        } finally {
+            structureLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Sets the balance of the given account in the given world and flags it as changed.
+     * <p>
+     * The caller must hold the account's lock and the account must be in the table.
+     *
+     * @param uuid the account owner's UUID
+     * @param world the world's number
+     * @param balance the balance in minor units
+     */
+    void setBalance(UUID uuid, int world, long balance) {
+        setBalance(uuid, world, balance, true);
+    }
+
+    /**
+     * Sets the balance of the given account in the given world.
+     * <p>
+     * The caller must hold the account's lock and the account must be in the table.
+     *
+     * @param uuid the account owner's UUID
+     * @param world the world's number
+     * @param balance the balance in minor units
+     * @param markChanged whether to flag the balance as changed
+     */
+    void setBalance(UUID uuid, int world, long balance, boolean markChanged) {
+        if (world >= columnCount()) {
+            long stamp = structureLock.writeLock();
+            try {
+                ensureColumns(world + 1);
+            } finally {
+                structureLock.unlockWrite(stamp);
+            }
+        }
+
+        long stamp = structureLock.readLock();
+        try {
+            int slot = slotOf(uuid);
+            balances[world][slot] = balance;
+            if (markChanged) {
+                changed[world][slot] = 1;
+            }
+        } finally {
+            structureLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Gets all balances of the given account.
+     * <p>
+     * The caller must hold the account's lock and the account must be in the table.
+     *
+     * @param uuid the account owner's UUID
+     * @return the balances in minor units indexed by world number, {@link #UNSET} for worlds without balance
+     */
+    long[] getBalances(UUID uuid) {
+        long stamp = structureLock.tryOptimisticRead();
+        long[][] columns = balances;
+        int slot = optimisticIndexOf(uuid);
+        if (slot >= 0) {
+            long[] values = new long[columns.length];
+            for (int world = 0; world < columns.length; world++) {
+                long[] column = columns[world];
+                values[world] = column != null && slot < column.length ? column[slot] : UNSET;
+            }
+            if (structureLock.validate(stamp)) {
+                return values;
+            }
+        }
+
+        stamp = structureLock.readLock();
+        try {
+            slot = slotOf(uuid);
+            long[] values = new long[balances.length];
+            for (int world = 0; world < balances.length; world++) {
+                values[world] = balances[world][slot];
+            }
+            return values;
+        } finally {
+            structureLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Gets the balances of the given account that have changed and resets their change flags.
+     * <p>
+     * The caller must hold the account's lock and the account must be in the table.
+     *
+     * @param uuid the account owner's UUID
+     * @return the changed balances in minor units indexed by world number, {@link #UNSET} for
+     *         unchanged worlds, or {@code null} if nothing has changed
+     */
+    long[] pollChanges(UUID uuid) {
+        long stamp = structureLock.readLock();
+        try {
+            int slot = slotOf(uuid);
+            long[] values = null;
+            for (int world = 0; world < changed.length; world++) {
+                if (changed[world][slot] != 0) {
+                    if (values == null) {
+                        values = new long[changed.length];
+                        Arrays.fill(values, UNSET);
+                    }
+                    values[world] = balances[world][slot];
+                    changed[world][slot] = 0;
+                }
+            }
+            return values;
+        } finally {
+            structureLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Flags the balance of the given account in the given world as changed, if it has been set.
+     * <p>
+     * The caller must hold the account's lock and the account must be in the table.
+     *
+     * @param uuid the account owner's UUID
+     * @param world the world's number
+     */
+    void markChanged(UUID uuid, int world) {
+        long stamp = structureLock.readLock();
+        try {
+            int slot = slotOf(uuid);
+            if (world < balances.length && balances[world][slot] != UNSET) {
+                changed[world][slot] = 1;
+            }
+        } finally {
+            structureLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Gets whether any balance of the given account has changed.
+     * <p>
+     * The caller must hold the account's lock and the account must be in the table.
+     *
+     * @param uuid the account owner's UUID
+     * @return whether the account has changes
+     */
+    boolean hasChanges(UUID uuid) {
+        long stamp = structureLock.tryOptimisticRead();
+        byte[][] columns = changed;
+        int slot = optimisticIndexOf(uuid);
+        if (slot >= 0) {
+            boolean hasChanges = false;
+            for (byte[] column : columns) {
+                if (column != null && slot < column.length && column[slot] != 0) {
+                    hasChanges = true;
+                    break;
+                }
+            }
+            if (structureLock.validate(stamp)) {
+                return hasChanges;
+            }
+        }
+
+        stamp = structureLock.readLock();
+        try {
+            return hasChanges(slotOf(uuid));
+        } finally {
+            structureLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Gets the amount of world columns.
+     */
+    private int columnCount() {
+        long stamp = structureLock.tryOptimisticRead();
+        int count = balances.length;
+        if (structureLock.validate(stamp)) {
+            return count;
+        }
+
+        stamp = structureLock.readLock();
+        try {
+            return balances.length;
+        } finally {
+            structureLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Gets the slot of the given account, which must be in the table.
+     */
+    private int slotOf(UUID uuid) {
+        int slot = indexOf(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        if (slot < 0) {
+            throw new IllegalStateException("The bank account of " + uuid + " is not loaded");
+        }
+        return slot;
+    }
+
+    /**
+     * Gets the slot of the account with the given UUID or {@code -1} if it is not in the table.
+     */
+    private int indexOf(long mostSig, long leastSig) {
+        int slot = hash(mostSig, leastSig) & mask;
+        while (isUsed(slot)) {
+            if (mostSigBits[slot] == mostSig && leastSigBits[slot] == leastSig) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the slot of the account with the given UUID without holding the structure lock or {@code -1}
+     * if it is not found.
+     * <p>
+     * The arrays may be replaced or changed meanwhile, so the result is only valid if the optimistic read is
+     * validated afterwards. Only local copies of the arrays are used and every index is checked, so a
+     * concurrent change can not make this fail or loop forever.
+     */
+    private int optimisticIndexOf(UUID uuid) {
+        long mostSig = uuid.getMostSignificantBits();
+        long leastSig = uuid.getLeastSignificantBits();
+        long[] mostSigBits = this.mostSigBits;
+        long[] leastSigBits = this.leastSigBits;
+        long[] used = this.used;
+
+        int capacity = mostSigBits.length;
+        if (leastSigBits.length != capacity || used.length != (capacity + 63) >>> 6) {
+            return -1;
+        }
+
+        int slot = hash(mostSig, leastSig) & (capacity - 1);
+        for (int probes = 0; probes < capacity && (used[slot >>> 6] & (1L << slot)) != 0; probes++) {
+            if (mostSigBits[slot] == mostSig && leastSigBits[slot] == leastSig) {
+                return slot;
+            }
+            slot = (slot + 1) & (capacity - 1);
+        }
+        return -1;
+    }
+
+    private boolean isUsed(int slot) {
+        return (used[slot >>> 6] & (1L << slot)) != 0;
+    }
+
+    private boolean hasChanges(int slot) {
+        for (byte[] column : changed) {
+            if (column[slot] != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds columns for worlds up to the given amount.
+     */
+    private void ensureColumns(int count) {
+        if (count <= balances.length) {
+            return;
+        }
+
+        int oldCount = balances.length;
+        balances = Arrays.copyOf(balances, count);
+        changed = Arrays.copyOf(changed, count);
+        for (int world = oldCount; world < count; world++) {
+            balances[world] = new long[mask + 1];
+            Arrays.fill(balances[world], UNSET);
+            changed[world] = new byte[mask + 1];
+        }
+    }
+
+    /**
+     * Allocates arrays of the given capacity and moves all accounts into them.
+     */
+    private void allocate(int capacity) {
+        long[] oldMostSigBits = mostSigBits;
+        long[] oldLeastSigBits = leastSigBits;
+        long[] oldUsed = used;
+        long[][] oldBalances = balances;
+        byte[][] oldChanged = changed;
+
+        mostSigBits = new long[capacity];
+        leastSigBits = new long[capacity];
+        used = new long[(capacity + 63) >>> 6];
+        balances = new long[oldBalances.length][capacity];
+        changed = new byte[oldChanged.length][capacity];
+        for (long[] column : balances) {
+            Arrays.fill(column, UNSET);
+        }
+        mask = capacity - 1;
+        threshold = (int) (capacity * MAX_LOAD_FACTOR);
+
+        if (oldMostSigBits == null) {
+            return;
+        }
+
+        for (int oldSlot = 0; oldSlot < oldMostSigBits.length; oldSlot++) {
+            if ((oldUsed[oldSlot >>> 6] & (1L << oldSlot)) == 0) {
+                continue;
+            }
+
+            int slot = hash(oldMostSigBits[oldSlot], oldLeastSigBits[oldSlot]) & mask;
+            while (isUsed(slot)) {
+                slot = (slot + 1) & mask;
+            }
+
+            mostSigBits[slot] = oldMostSigBits[oldSlot];
+            leastSigBits[slot] = oldLeastSigBits[oldSlot];
+            used[slot >>> 6] |= 1L << slot;
+            for (int world = 0; world < balances.length; world++) {
+                balances[world][slot] = oldBalances[world][oldSlot];
+                changed[world][slot] = oldChanged[world][oldSlot];
+            }
+        }
+    }
+
+    /**
+     * Removes the account in the given slot and moves following accounts back into the gap,
+     * so no lookup has to skip over removed accounts.
+     */
+    private void delete(int slot) {
+        int hole = slot;
+        int next = (hole + 1) & mask;
+
+        while (isUsed(next)) {
+            int home = hash(mostSigBits[next], leastSigBits[next]) & mask;
+
+            // The account can be moved if the hole lies between its home slot and its current slot
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                mostSigBits[hole] = mostSigBits[next];
+                leastSigBits[hole] = leastSigBits[next];
+                for (int world = 0; world < balances.length; world++) {
+                    balances[world][hole] = balances[world][next];
+                    changed[world][hole] = changed[world][next];
+                }
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+
+        used[hole >>> 6] &= ~(1L << hole);
+        for (int world = 0; world < balances.length; world++) {
+            balances[world][hole] = UNSET;
+            changed[world][hole] = 0;
+        }
+        size--;
+    }
+}
@@ -1,8 +1,14 @@
 package de.epiceric.justmoney.model;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.logging.Level;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Lock;
+import java.util.function.LongUnaryOperator;
 
 import org.bukkit.OfflinePlayer;
 import org.bukkit.World;
@@ -12,28 +18,91 @@ import de.epiceric.justmoney.exception.NotEnoughMoneyException;
 
 /**
  * Holds the balances of a player.
+ * <p>
+ * All balance changes are atomic, so an account can safely be used from multiple threads.
+ * <p>
+ * Since 1.3, the balances are held in the bank manager's {@link AccountTable} and a bank
+ * account is only a view of them, so two accounts of the same player are equal. Creating
+ * an account adds it to the table, unless the player's account is already loaded. If the
+ * account has been removed from memory in the meantime, using it loads it again.
  * 
  * @since 1.0
  */
 public final class BankAccount {
     private final JustMoney plugin;
     private final OfflinePlayer owner;
-    private final Map<String, Double> balances = new HashMap<>();
+    private final UUID uuid;
+    private final AccountTable table;
+    private final MoneyScale scale;
+    private final WorldRegistry worlds;
 
     public BankAccount(JustMoney plugin, OfflinePlayer owner) {
-        this(plugin, owner, plugin.getConfig().getDouble("start-balance"));
+        this(plugin, owner, plugin.getSettings().getStartBalance());
     }
 
     public BankAccount(JustMoney plugin, OfflinePlayer owner, double balance) {
+        this(plugin, owner, Collections.singletonMap(plugin.getServer().getWorlds().get(0).getName(), balance));
+    }
+
+    public BankAccount(JustMoney plugin, OfflinePlayer owner, Map<String, Double> balances) {
         this.plugin = plugin;
         this.owner = owner;
-        this.balances.put(getDefaultWorld().getName(), balance);
+        this.uuid = owner.getUniqueId();
+        this.table = plugin.getBankManager().getAccountTable();
+        this.scale = plugin.getMoneyScale();
+        this.worlds = plugin.getWorldRegistry();
+
+        long[] values = new long[0];
+        for (Map.Entry<String, Double> entry : balances.entrySet()) {
+            int worldId = worlds.getId(entry.getKey());
+            if (worldId >= values.length) {
+                int oldLength = values.length;
+                values = Arrays.copyOf(values, worldId + 1);
+                Arrays.fill(values, oldLength, values.length, AccountTable.UNSET);
+            }
+            values[worldId] = scale.toMinorUnits(entry.getValue());
+        }
+        table.insert(uuid, values);
     }
 
-    public BankAccount(JustMoney plugin, OfflinePlayer owner, Map<String, Double> balances) {
+    private BankAccount(JustMoney plugin, OfflinePlayer owner, AccountTable table) {
         this.plugin = plugin;
         this.owner = owner;
-        this.balances.putAll(balances);
+        this.uuid = owner.getUniqueId();
+        this.table = table;
+        this.scale = plugin.getMoneyScale();
+        this.worlds = plugin.getWorldRegistry();
+    }
+
+    /**
+     * Gets a view of the given player's account without adding it to the account table.
+     * <p>
+     * This is used by the bank manager after it has made sure the account is loaded.
+     * 
+     * @param plugin an instance of the JustMoney plugin
+     * @param owner the owner of the bank account
+     * @return the bank account
+     * @since 1.3
+     */
+    public static BankAccount view(JustMoney plugin, OfflinePlayer owner) {
+        return new BankAccount(plugin, owner, plugin.getBankManager().getAccountTable());
+    }
+
+    /**
+     * Locks this account, loading it again if it has been removed from memory.
+     * 
+     * @return the held lock
+     */
+    private Lock lock() {
+        for (;;) {
+            Lock lock = table.getLock(uuid);
+            lock.lock();
+            if (table.contains(uuid)) {
+                return lock;
+            }
+            lock.unlock();
+            plugin.getBankManager().getBankAccount(owner);
+        }
     }
 
     /**
@@ -43,7 +112,7 @@ public final class BankAccount {
      * @since 1.0
      */
     private boolean isMultiWorld() {
-        return plugin.getConfig().getBoolean("multi-world");
+        return plugin.getSettings().isMultiWorld();
     }
 
     /**
@@ -56,17 +125,6 @@ public final class BankAccount {
         return plugin.getServer().getWorlds().get(0);
     }
 
-    /**
-     * Rounds the given balance to the configured decimal places.
-     * 
-     * @param balance the balance
-     * @return the rounded balance
-     */
-    private double round(double balance) {
-        int factor = (int) Math.pow(10, plugin.getConfig().getInt("formatting.decimal-places"));
-        return Math.round(balance * factor) / factor;
-    }
-
     /**
      * Gets this bank account's owner.
      * 
@@ -77,6 +135,135 @@ public final class BankAccount {
         return owner;
     }
 
+    /**
+     * Gets the balances that are stored in this account, mapped by world name.
+     * <p>
+     * Worlds in which the balance has never been set are not contained.
+     * 
+     * @return an unmodifiable copy of the balances
+     * @since 1.3
+     */
+    public Map<String, Double> getBalances() {
+        long[] balances;
+        Lock lock = lock();
+        try {
+            balances = table.getBalances(uuid);
+        } finally {
+            lock.unlock();
+        }
+        return Collections.unmodifiableMap(toMap(balances));
+    }
+
+    /**
+     * Maps the given balances by world name.
+     * 
+     * @param balances the balances in minor units indexed by world number
+     * @return the balances that have been set, mapped by world name
+     */
+    private Map<String, Double> toMap(long[] balances) {
+        Map<String, Double> map = new HashMap<>();
+        for (int id = 0; id < balances.length; id++) {
+            if (balances[id] != AccountTable.UNSET) {
+                map.put(worlds.getName(id), scale.fromMinorUnits(balances[id]));
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Gets the balances that have changed since the last call and resets their change flags.
+     * <p>
+     * This is used by the storage to only write the balances that have changed. If storing them
+     * fails, they have to be passed to {@link #restoreChanges(Collection)}.
+     * 
+     * @return the changed balances mapped by world name
+     * @since 1.3
+     */
+    public Map<String, Double> pollChanges() {
+        long[] changes;
+        Lock lock = lock();
+        try {
+            changes = table.pollChanges(uuid);
+        } finally {
+            lock.unlock();
+        }
+        return changes == null ? Collections.emptyMap() : toMap(changes);
+    }
+
+    /**
+     * Flags the balances in the given worlds as changed again, e.g. after storing them failed.
+     * 
+     * @param worldNames the names of the worlds
+     * @since 1.3
+     */
+    public void restoreChanges(Collection<String> worldNames) {
+        Lock lock = lock();
+        try {
+            worldNames.forEach(worldName -> table.markChanged(uuid, worlds.getId(worldName)));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets whether any balance has changed since the last call of {@link #pollChanges()}.
+     * 
+     * @return whether the account has unstored changes
+     * @since 1.3
+     */
+    public boolean hasChanges() {
+        Lock lock = table.getLock(uuid);
+        lock.lock();
+        try {
+            // An account that is not in memory has been stored completely
+            return table.contains(uuid) && table.hasChanges(uuid);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds a change that has been made to the stored balance in the given world by
+     * another server, e.g. on a shared database.
+     * <p>
+     * The difference is added to the balance in memory, so changes that have not been
+     * stored yet are kept. The balance is not flagged as changed by this. If the account
+     * is not in memory, nothing happens, as it is read from the storage when it is loaded.
+     * 
+     * @param worldName the name of the world
+     * @param difference the difference between the new and the old stored balance in minor units
+     * @return whether the account is in memory
+     * @throws ArithmeticException when the new balance would overflow
+     * @since 1.3
+     */
+    public boolean applyStoredChange(String worldName, long difference) throws ArithmeticException {
+        int worldId = worlds.getId(worldName);
+        Lock lock = table.getLock(uuid);
+        lock.lock();
+        try {
+            if (!table.contains(uuid)) {
+                return false;
+            }
+            if (difference != 0) {
+                table.setBalance(uuid, worldId, Math.addExact(getStoredBalance(worldId), difference), false);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets a future that completes when the account's current changes have been stored.
+     * 
+     * @return the future, which is already completed if there are no pending changes
+     * @since 1.3
+     * @see de.epiceric.justmoney.storage.WriteBehindQueue.Durability
+     */
+    public CompletableFuture<Void> whenStored() {
+        return plugin.getWriteQueue().whenStored(this);
+    }
+
     /**
      * Formats the account's balance in the given world.
      * 
@@ -85,7 +272,7 @@ public final class BankAccount {
      * @since 1.0
      */
     public String formatBalance(World world) {
-        return plugin.format(getBalance(world));
+        return plugin.getSettings().getFormatter().format(getMinorBalance(world));
     }
 
     /**
@@ -98,6 +285,16 @@ public final class BankAccount {
         return formatBalance(getDefaultWorld());
     }
 
+    /**
+     * Gets the number of the world in which the balance for the given world is stored.
+     * 
+     * @param world the world
+     * @return the world's number in the world registry
+     */
+    private int getWorldId(World world) {
+        return worlds.getId(isMultiWorld() ? world : getDefaultWorld());
+    }
+
     /**
      * Gets the account's balance in the given world.
      * 
@@ -106,8 +303,38 @@ public final class BankAccount {
      * @since 1.0
      */
     public double getBalance(World world) {
-        String worldName = isMultiWorld() ? world.getName() : getDefaultWorld().getName();
-        return round(balances.getOrDefault(worldName, plugin.getConfig().getDouble("start-balance")));
+        return scale.fromMinorUnits(getMinorBalance(world));
+    }
+
+    /**
+     * Gets the account's exact balance in the given world in minor units.
+     * 
+     * @param world the world
+     * @return the balance in minor units
+     * @since 1.3
+     * @see MoneyScale
+     */
+    public long getMinorBalance(World world) {
+        int worldId = getWorldId(world);
+        Lock lock = lock();
+        try {
+            return getStoredBalance(worldId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the stored balance in minor units in the world with the given number.
+     * <p>
+     * The caller must hold this account's lock.
+     * 
+     * @param worldId the world's number
+     * @return the balance or the start balance if none is stored
+     */
+    private long getStoredBalance(int worldId) {
+        long balance = table.getBalance(uuid, worldId);
+        return balance != AccountTable.UNSET ? balance : plugin.getSettings().getMinorStartBalance();
     }
 
     /**
@@ -120,6 +347,36 @@ public final class BankAccount {
         return getBalance(getDefaultWorld());
     }
 
+    /**
+     * Atomically replaces the account's balance in the given world with the result
+     * of the given operation.
+     * 
+     * @param world the world
+     * @param operation the operation applied to the current balance in minor units
+     * @return the new balance
+     * @throws IllegalArgumentException when the new balance would be negative
+     * @throws ArithmeticException when the new balance would overflow
+     */
+    private double updateBalance(World world, LongUnaryOperator operation)
+            throws IllegalArgumentException, ArithmeticException {
+        int worldId = getWorldId(world);
+        long newBalance;
+
+        Lock lock = lock();
+        try {
+            newBalance = operation.applyAsLong(getStoredBalance(worldId));
+            if (newBalance < 0) {
+                throw new IllegalArgumentException("The balance cannot be negative: " + scale.fromMinorUnits(newBalance));
+            }
+            table.setBalance(uuid, worldId, newBalance);
+        } finally {
+            lock.unlock();
+        }
+
+        plugin.getWriteQueue().markDirty(this);
+        return scale.fromMinorUnits(newBalance);
+    }
+
     /**
      * Sets the account's balance in the given world.
      * 
@@ -127,19 +384,15 @@ public final class BankAccount {
      * @param balance the balance to set
      * @return the new balance
      * @throws IllegalArgumentException when balance is negative
+     * @throws ArithmeticException when the balance is too large
      * @since 1.0
      */
-    public double setBalance(World world, double balance) throws IllegalArgumentException {
+    public double setBalance(World world, double balance) throws IllegalArgumentException, ArithmeticException {
         if (balance < 0) {
             throw new IllegalArgumentException("The balance cannot be negative: " + balance);
         }
-        String worldName = isMultiWorld() ? world.getName() : getDefaultWorld().getName();
-        balances.put(worldName, round(balance));
-        plugin.getStorage().storeAccount(this).exceptionally(ex -> {
-            plugin.getLogger().log(Level.SEVERE, "Failed to store account", ex);
-            return null;
-        });
-        return getBalance(world);
+        long minorBalance = scale.toMinorUnits(balance);
+        return updateBalance(world, current -> minorBalance);
     }
 
     /**
@@ -148,9 +401,10 @@ public final class BankAccount {
      * @param balance the balance to set
      * @return the new balance
      * @throws IllegalArgumentException when balance is negative
+     * @throws ArithmeticException when the balance is too large
      * @since 1.0
      */
-    public double setBalance(double balance) throws IllegalArgumentException {
+    public double setBalance(double balance) throws IllegalArgumentException, ArithmeticException {
         return setBalance(getDefaultWorld(), balance);
     }
 
@@ -160,10 +414,12 @@ public final class BankAccount {
      * @param world the world
      * @param amount the money to add
      * @return the new balance
+     * @throws ArithmeticException when the new balance would overflow
      * @since 1.0
      */
-    public double deposit(World world, double amount) {
-        return setBalance(world, getBalance() + amount);
+    public double deposit(World world, double amount) throws ArithmeticException {
+        long minorAmount = scale.toMinorUnits(amount);
+        return updateBalance(world, current -> Math.addExact(current, minorAmount));
     }
 
     /**
@@ -171,9 +427,10 @@ public final class BankAccount {
      * 
      * @param balance the money to add
      * @return the new balance
+     * @throws ArithmeticException when the new balance would overflow
      * @since 1.0
      */
-    public double deposit(double balance) {
+    public double deposit(double balance) throws ArithmeticException {
         return deposit(getDefaultWorld(), balance);
     }
 
@@ -184,25 +441,123 @@ public final class BankAccount {
      * @param amount the amount to withdraw
      * @return the new balance
      * @throws NotEnoughMoneyException when the account does not have enough money
+     * @throws ArithmeticException when the amount is not a number or too large
      * @since 1.0
      */
-    public double withdraw(World world, double amount) throws NotEnoughMoneyException {
+    public double withdraw(World world, double amount) throws NotEnoughMoneyException, ArithmeticException {
+        long minorAmount = scale.toMinorUnits(amount);
         try {
-            return setBalance(world, getBalance() - amount);
+            return updateBalance(world, current -> Math.subtractExact(current, minorAmount));
         } catch (IllegalArgumentException ex) {
             throw new NotEnoughMoneyException("The account does not have enough money", ex);
         }
     }
 
+    /**
+     * Moves the given amount from this account to the given account in the given world.
+     * <p>
+     * Both balances are changed atomically and are stored together.
+     * 
+     * @param receiver the account that receives the money
+     * @param world the world
+     * @param amount the amount to transfer
+     * @return the new balance of this account
+     * @throws NotEnoughMoneyException when this account does not have enough money
+     * @throws IllegalArgumentException when the amount is negative or both accounts belong to the same player
+     * @throws ArithmeticException when the receiver's balance would overflow
+     * @since 1.3
+     */
+    public double transfer(BankAccount receiver, World world, double amount)
+            throws NotEnoughMoneyException, IllegalArgumentException, ArithmeticException {
+        if (amount < 0) {
+            throw new IllegalArgumentException("The amount cannot be negative: " + amount);
+        }
+
+        if (uuid.equals(receiver.uuid)) {
+            throw new IllegalArgumentException("Cannot transfer money to the same account");
+        }
+
+        // Always lock the accounts in the same order, so opposite transfers cannot deadlock
+        int stripe = table.getStripe(uuid);
+        int receiverStripe = table.getStripe(receiver.uuid);
+        Lock first = table.getLock(Math.min(stripe, receiverStripe));
+        Lock second = table.getLock(Math.max(stripe, receiverStripe));
+        int worldId = getWorldId(world);
+        long minorAmount = scale.toMinorUnits(amount);
+        long newBalance;
+
+        for (;;) {
+            BankAccount missing;
+            first.lock();
+            second.lock();
+            try {
+                missing = !table.contains(uuid) ? this : !table.contains(receiver.uuid) ? receiver : null;
+                if (missing == null) {
+                    newBalance = getStoredBalance(worldId) - minorAmount;
+                    if (newBalance < 0) {
+                        throw new NotEnoughMoneyException("The account does not have enough money");
+                    }
+                    long receiverBalance = Math.addExact(receiver.getStoredBalance(worldId), minorAmount);
+
+                    table.setBalance(uuid, worldId, newBalance);
+                    table.setBalance(receiver.uuid, worldId, receiverBalance);
+                    break;
+                }
+            } finally {
+                second.unlock();
+                first.unlock();
+            }
+
+            // Load the account again without holding any account lock
+            plugin.getBankManager().getBankAccount(missing.owner);
+        }
+
+        plugin.getWriteQueue().markDirty(this, receiver);
+        return scale.fromMinorUnits(newBalance);
+    }
+
+    /**
+     * Moves the given amount from this account to the given account in the default world.
+     * 
+     * @param receiver the account that receives the money
+     * @param amount the amount to transfer
+     * @return the new balance of this account
+     * @throws NotEnoughMoneyException when this account does not have enough money
+     * @throws IllegalArgumentException when the amount is negative or both accounts belong to the same player
+     * @throws ArithmeticException when the receiver's balance would overflow
+     * @since 1.3
+     */
+    public double transfer(BankAccount receiver, double amount)
+            throws NotEnoughMoneyException, IllegalArgumentException, ArithmeticException {
+        return transfer(receiver, getDefaultWorld(), amount);
+    }
+
     /**
      * Removes the given amount from the account's balance in the default world.
      * 
      * @param amount the amount to withdraw
      * @return the new balance
      * @throws NotEnoughMoneyException when the account does not have enough money
+     * @throws ArithmeticException when the amount is not a number or too large
      * @since 1.0
      */
-    public double withdraw(double amount) throws NotEnoughMoneyException {
+    public double withdraw(double amount) throws NotEnoughMoneyException, ArithmeticException {
         return withdraw(getDefaultWorld(), amount);
     }
-}
\ No newline at end of file
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof BankAccount)) {
+            return false;
+        }
+        return uuid.equals(((BankAccount) obj).uuid);
+    }
+
+    @Override
+    public int hashCode() {
+        return uuid.hashCode();
+    }
+}
@@ -0,0 +1,110 @@
+package de.epiceric.justmoney.model;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Converts between money amounts and their minor units.
+ * <p>
+ * Balances are held as whole numbers of minor units, e.g. cents when two decimal
+ * places are configured, so adding and subtracting them is exact. They are only
+ * converted to {@code double} where the API or the storage requires it.
+ * 
+ * @since 1.3
+ */
+public final class MoneyScale {
+    /**
+     * Maximum amount of decimal places, so one major unit still fits comfortably into a long.
+     */
+    private static final int MAX_DECIMAL_PLACES = 9;
+
+    /**
+     * Amounts of minor units below which the error of multiplying a double by the factor
+     * stays far below the tie tolerance.
+     */
+    private static final double FAST_ROUNDING_LIMIT = 1e12;
+
+    /**
+     * Distance from a tie between two minor units within which the decimal value decides.
+     */
+    private static final double TIE_TOLERANCE = 1e-3;
+
+    private final int decimalPlaces;
+    private final long factor;
+    private final double maxAmount;
+
+    /**
+     * Creates a money scale with the given amount of decimal places.
+     * 
+     * @param decimalPlaces the amount of decimal places, is clamped between 0 and 9
+     * @since 1.3
+     */
+    public MoneyScale(int decimalPlaces) {
+        this.decimalPlaces = Math.max(0, Math.min(MAX_DECIMAL_PLACES, decimalPlaces));
+
+        long factor = 1;
+        for (int i = 0; i < this.decimalPlaces; i++) {
+            factor *= 10;
+        }
+        this.factor = factor;
+        this.maxAmount = (double) Long.MAX_VALUE / factor;
+    }
+
+    /**
+     * Gets the amount of decimal places.
+     * 
+     * @return the amount of decimal places
+     * @since 1.3
+     */
+    public int getDecimalPlaces() {
+        return decimalPlaces;
+    }
+
+    /**
+     * Gets the amount of minor units that make up one major unit.
+     * 
+     * @return the factor, a power of ten
+     * @since 1.3
+     */
+    public long getFactor() {
+        return factor;
+    }
+
+    /**
+     * Converts the given amount to minor units, rounding half up to the nearest unit.
+     * <p>
+     * The amount is rounded by its shortest decimal representation, like
+     * {@link String#format(String, Object...)} does, so e.g. 1.005 is rounded to 1.01
+     * and -1.005 to -1.01. Amounts are formatted the same way, so a message always
+     * shows the amount that is stored.
+     * 
+     * @param amount the amount
+     * @return the amount in minor units
+     * @throws ArithmeticException when the amount is not a number or too large to be represented
+     * @since 1.3
+     */
+    public long toMinorUnits(double amount) throws ArithmeticException {
+        if (Double.isNaN(amount) || Math.abs(amount) >= maxAmount) {
+            throw new ArithmeticException("The amount cannot be represented: " + amount);
+        }
+
+        double scaled = amount * factor;
+        if (Math.abs(scaled) < FAST_ROUNDING_LIMIT && Math.abs(scaled - Math.floor(scaled) - 0.5) > TIE_TOLERANCE) {
+            // Far from a tie, rounding the product gives the same result as rounding the decimal value
+            return Math.round(scaled);
+        }
+        return BigDecimal.valueOf(amount).setScale(decimalPlaces, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+
+    /**
+     * Converts the given amount of minor units back to an amount.
+     * 
+     * @param minorUnits the amount in minor units
+     * @return the amount
+     * @since 1.3
+     */
+    public double fromMinorUnits(long minorUnits) {
+        // Splitting off the fraction keeps large balances exact as long as possible
+        return minorUnits / factor + (double) (minorUnits % factor) / factor;
+    }
+}
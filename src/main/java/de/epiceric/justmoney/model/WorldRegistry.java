@@ -0,0 +1,89 @@
+package de.epiceric.justmoney.model;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bukkit.World;
+
+/**
+ * Assigns each world name a small number, so balances can be stored in arrays
+ * indexed by that number instead of maps keyed by the world name.
+ * <p>
+ * Numbers are assigned in the order in which the worlds are first seen and are
+ * never reused. They are only valid while the plugin is running and must not
+ * be stored.
+ * 
+ * @since 1.3
+ */
+public final class WorldRegistry {
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[0];
+
+    /**
+     * Gets the number of the given world, assigning a new one if the world has none yet.
+     * 
+     * @param world the world
+     * @return the world's number
+     * @since 1.3
+     */
+    public int getId(World world) {
+        return getId(world.getName());
+    }
+
+    /**
+     * Gets the number of the world with the given name, assigning a new one if the world has none yet.
+     * 
+     * @param worldName the world name
+     * @return the world's number
+     * @since 1.3
+     */
+    public int getId(String worldName) {
+        Integer id = ids.get(worldName);
+        return id != null ? id : register(worldName);
+    }
+
+    /**
+     * Gets the name of the world with the given number.
+     * 
+     * @param id the world's number
+     * @return the world name
+     * @throws IndexOutOfBoundsException when no world has the given number
+     * @since 1.3
+     */
+    public String getName(int id) {
+        return names[id];
+    }
+
+    /**
+     * Gets the amount of worlds that have a number.
+     * 
+     * @return the amount of worlds
+     * @since 1.3
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * Assigns the next number to the world with the given name.
+     * 
+     * @param worldName the world name
+     * @return the world's number
+     */
+    private synchronized int register(String worldName) {
+        Integer id = ids.get(worldName);
+        if (id != null) {
+            // Another thread has been faster
+            return id;
+        }
+
+        String[] newNames = Arrays.copyOf(names, names.length + 1);
+        newNames[names.length] = worldName;
+
+        // Publish the name before the number, so every known number has a name
+        names = newNames;
+        ids.put(worldName, names.length - 1);
+        return names.length - 1;
+    }
+}
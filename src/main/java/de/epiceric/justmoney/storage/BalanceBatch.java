@@ -0,0 +1,57 @@
+package de.epiceric.justmoney.storage;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A batch of stored balances read by {@link BankStorage#readBalances(String, int)}.
+ * 
+ * @since 1.3
+ */
+public final class BalanceBatch {
+    private final Map<UUID, Map<String, Double>> balances;
+    private final String nextPosition;
+
+    /**
+     * Creates a batch of balances.
+     * 
+     * @param balances the balances mapped by the account owner's UUID and world name
+     * @param nextPosition the position to continue reading at or {@code null} if there are no more accounts
+     * @since 1.3
+     */
+    public BalanceBatch(Map<UUID, Map<String, Double>> balances, String nextPosition) {
+        this.balances = Collections.unmodifiableMap(balances);
+        this.nextPosition = nextPosition;
+    }
+
+    /**
+     * Gets the balances in this batch.
+     * 
+     * @return the balances mapped by the account owner's UUID and world name
+     * @since 1.3
+     */
+    public Map<UUID, Map<String, Double>> getBalances() {
+        return balances;
+    }
+
+    /**
+     * Gets the position to pass to the next call of {@link BankStorage#readBalances(String, int)}.
+     * 
+     * @return the next position or {@code null} if this is the last batch
+     * @since 1.3
+     */
+    public String getNextPosition() {
+        return nextPosition;
+    }
+
+    /**
+     * Gets whether there are no more accounts after this batch.
+     * 
+     * @return whether this is the last batch
+     * @since 1.3
+     */
+    public boolean isLast() {
+        return nextPosition == null;
+    }
+}
@@ -1,7 +1,12 @@
 package de.epiceric.justmoney.storage;
 
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
 
 import de.epiceric.justmoney.model.BankAccount;
 
@@ -28,6 +33,19 @@ public interface BankStorage {
      */
     CompletableFuture<Void> storeAccount(BankAccount account);
 
+    /**
+     * Stores the given bank accounts.
+     * 
+     * @param accounts the accounts to store
+     * @return a future that completes when all accounts have been stored
+     * @since 1.3
+     */
+    default CompletableFuture<Void> storeAccounts(Collection<BankAccount> accounts) {
+        return CompletableFuture.allOf(accounts.stream()
+            .map(this::storeAccount)
+            .toArray(CompletableFuture[]::new));
+    }
+
     /**
      * Gets all stored bank accounts.
      * 
@@ -35,4 +53,99 @@ public interface BankStorage {
      * @since 1.0
      */
     CompletableFuture<Collection<BankAccount>> getAccounts();
-}
\ No newline at end of file
+
+    /**
+     * Gets the stored bank accounts of the given players.
+     * <p>
+     * Players without a stored bank account are left out. By default, each account is looked up
+     * on its own with {@link #getAccount(UUID)}, so storages that can read many accounts at once
+     * should override this.
+     * 
+     * @param uuids the UUIDs of the account owners
+     * @return a future that completes with the stored bank accounts when they have been loaded
+     * @since 1.3
+     */
+    default CompletableFuture<Collection<BankAccount>> getAccounts(Collection<UUID> uuids) {
+        List<CompletableFuture<Optional<BankAccount>>> futures = uuids.stream()
+            .map(this::getAccount)
+            .collect(Collectors.toList());
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+            .thenApply(v -> futures.stream()
+                .map(CompletableFuture::join)
+                .filter(Optional::isPresent)
+                .map(Optional::get)
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Gets the stored bank account of the given player.
+     * <p>
+     * By default, this loads all stored accounts with {@link #getAccounts()} and picks the player's,
+     * so storages that can look up a single account should override this.
+     * 
+     * @param uuid the UUID of the account owner
+     * @return a future that completes with the stored bank account or an empty optional if none is stored
+     * @since 1.3
+     */
+    default CompletableFuture<Optional<BankAccount>> getAccount(UUID uuid) {
+        return getAccounts().thenApply(accounts -> accounts.stream()
+            .filter(account -> account.getOwner().getUniqueId().equals(uuid))
+            .findAny());
+    }
+
+    /**
+     * Reads the stored balances of up to the given amount of accounts, continuing after the given position.
+     * <p>
+     * Unlike {@link #getAccounts()}, this does not create bank accounts, so it can be used to copy
+     * the stored balances without loading them. The accounts are read in a fixed order, so passing
+     * the position of each batch to the next call visits every stored account once.
+     * 
+     * @param position the position returned by the previous batch or {@code null} to start at the first account
+     * @param limit the maximum amount of accounts to read
+     * @return a future that completes with the batch of balances when it has been read
+     * @since 1.3
+     */
+    default CompletableFuture<BalanceBatch> readBalances(String position, int limit) {
+        CompletableFuture<BalanceBatch> future = new CompletableFuture<>();
+        future.completeExceptionally(new UnsupportedOperationException(getTypeName() + " storage cannot read balances in batches"));
+        return future;
+    }
+
+    /**
+     * Stores the given balances, replacing the stored balances of these accounts in the given worlds.
+     * <p>
+     * This does not affect bank accounts that are loaded, so it can be used to copy balances
+     * from another storage.
+     * 
+     * @param balances the balances mapped by the account owner's UUID and world name
+     * @return a future that completes when the balances have been stored
+     * @since 1.3
+     */
+    default CompletableFuture<Void> writeBalances(Map<UUID, Map<String, Double>> balances) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        future.completeExceptionally(new UnsupportedOperationException(getTypeName() + " storage cannot write balances in batches"));
+        return future;
+    }
+
+    /**
+     * Starts reading changes that other servers make to the storage periodically
+     * and applies them to the bank accounts in memory.
+     * <p>
+     * This does nothing by default, as only a shared database can be changed by
+     * other servers.
+     * 
+     * @since 1.3
+     */
+    default void startRefreshing() {
+    }
+
+    /**
+     * Releases all resources held by the storage.
+     * <p>
+     * This is called when the plugin is disabled, after all pending changes have been stored.
+     * 
+     * @since 1.3
+     */
+    default void close() {
+    }
+}
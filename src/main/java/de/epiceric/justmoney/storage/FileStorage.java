@@ -3,36 +3,69 @@ package de.epiceric.justmoney.storage;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
-
-import org.bukkit.World;
+import java.util.stream.Collectors;
 
 import de.epiceric.justmoney.JustMoney;
 import de.epiceric.justmoney.model.BankAccount;
 
 /**
  * A bank account storage using flat files.
+ * <p>
+ * On startup, a {@link SnapshotFile} of all balances is taken. The next start
+ * then only has to read the files which have been written after that.
  * 
  * @since 1.0
  */
 public class FileStorage implements BankStorage {
+    /**
+     * Tolerance in milliseconds for comparing file modification times, as some file systems
+     * only store them with a precision of seconds.
+     */
+    private static final long MODIFICATION_TOLERANCE = 2000;
+
+    /**
+     * Orders UUIDs like their string form, which is the order of the account file names.
+     */
+    private static final Comparator<UUID> FILE_ORDER = (a, b) -> {
+        int result = Long.compareUnsigned(a.getMostSignificantBits(), b.getMostSignificantBits());
+        return result != 0 ? result : Long.compareUnsigned(a.getLeastSignificantBits(), b.getLeastSignificantBits());
+    };
+
     private final JustMoney plugin;
     private final File dataFolder;
+    private final File snapshotFile;
+
+    // Sorted UUIDs of all account files that are read in batches, see readBalances
+    private UUID[] batchOrder;
 
     public FileStorage(JustMoney plugin) {
         this.plugin = plugin;
         this.dataFolder = new File(plugin.getDataFolder(), "data");
+        this.snapshotFile = new File(plugin.getDataFolder(), "data.snapshot");
     }
 
     @Override
@@ -43,23 +76,154 @@ public class FileStorage implements BankStorage {
     @Override
     public CompletableFuture<Void> storeAccount(BankAccount account) {
         return CompletableFuture.runAsync(() -> {
-            File file = new File(dataFolder, account.getOwner().getUniqueId().toString());
-            file.getParentFile().mkdirs();
+            Map<String, Double> changes = account.pollChanges();
+            if (changes.isEmpty()) {
+                // Nothing has changed since the file was last written
+                return;
+            }
 
+            // The file holds all balances of the account, so the stored ones are written
             try {
-                file.createNewFile();  
+                writeFile(account.getOwner().getUniqueId(), account.getBalances());
             } catch (IOException ex) {
+                account.restoreChanges(changes.keySet());
                 throw new CompletionException(ex);
+            } catch (RuntimeException ex) {
+                account.restoreChanges(changes.keySet());
+                throw ex;
+            }
+        }, plugin.getStorageExecutor());
+    }
+
+    /**
+     * Writes the given balances to the account's file, replacing its content.
+     * 
+     * @param uuid the account owner's UUID
+     * @param balances the balances mapped by world name
+     * @throws IOException when the file could not be written
+     */
+    private void writeFile(UUID uuid, Map<String, Double> balances) throws IOException {
+        File file = new File(dataFolder, uuid.toString());
+        file.getParentFile().mkdirs();
+        file.createNewFile();
+
+        try (FileWriter writer = new FileWriter(file)) {
+            for (Map.Entry<String, Double> entry : balances.entrySet()) {
+                writer.write(entry.getKey() + ":" + entry.getValue() + "\n");
+            }
+        }
+    }
+
+    @Override
+    public CompletableFuture<BalanceBatch> readBalances(String position, int limit) {
+        return CompletableFuture.supplyAsync(() -> {
+            if (!dataFolder.exists()) {
+                return new BalanceBatch(Collections.emptyMap(), null);
             }
 
-            try (FileWriter writer = new FileWriter(file)) {
-                for (World world : plugin.getServer().getWorlds()) {
-                    writer.write(world.getName() + ":" + account.getBalance(world) + "\n");
+            UUID[] accounts;
+            int start = 0;
+            synchronized (this) {
+                try {
+                    // The folder is only listed once, following batches continue in the same list
+                    if (position == null || batchOrder == null) {
+                        batchOrder = listAccountFiles();
+                    }
+                    accounts = batchOrder;
+
+                    if (position != null) {
+                        // Accounts up to the position have been read, even if it has been removed since
+                        int index = Arrays.binarySearch(accounts, UUID.fromString(position), FILE_ORDER);
+                        start = index >= 0 ? index + 1 : -index - 1;
+                    }
+                } catch (IOException | IllegalArgumentException ex) {
+                    batchOrder = null;
+                    throw new CompletionException(ex);
+                }
+            }
+
+            int end = (int) Math.min((long) start + limit, accounts.length);
+            LoadProgress progress = new LoadProgress(end - start);
+            Map<UUID, Map<String, Double>> balances = new LinkedHashMap<>();
+            for (int i = start; i < end; i++) {
+                File file = new File(dataFolder, accounts[i].toString());
+                if (!file.exists()) {
+                    // The account has been removed since the folder was listed
+                    continue;
+                }
+
+                Map.Entry<UUID, Map<String, Double>> entry = loadBalances(file, progress);
+                if (entry != null) {
+                    balances.put(entry.getKey(), entry.getValue());
+                }
+            }
+            progress.logErrors();
+
+            if (end >= accounts.length) {
+                synchronized (this) {
+                    if (batchOrder == accounts) {
+                        batchOrder = null;
+                    }
+                }
+                return new BalanceBatch(balances, null);
+            }
+            return new BalanceBatch(balances, accounts[end - 1].toString());
+        }, plugin.getStorageExecutor());
+    }
+
+    /**
+     * Lists the UUIDs of all account files in the order of the file names.
+     * 
+     * @return the sorted UUIDs
+     * @throws IOException when the folder could not be listed
+     */
+    private UUID[] listAccountFiles() throws IOException {
+        List<UUID> uuids = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dataFolder.toPath())) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                if (name.length() != 36) {
+                    continue;
+                }
+
+                try {
+                    UUID uuid = UUID.fromString(name);
+                    if (uuid.toString().equals(name)) {
+                        uuids.add(uuid);
+                    }
+                } catch (IllegalArgumentException ignored) {
+                }
+            }
+        }
+
+        UUID[] result = uuids.toArray(new UUID[0]);
+        Arrays.sort(result, FILE_ORDER);
+        return result;
+    }
+
+    @Override
+    public CompletableFuture<Void> writeBalances(Map<UUID, Map<String, Double>> balances) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                for (Map.Entry<UUID, Map<String, Double>> entry : balances.entrySet()) {
+                    // Balances in other worlds are kept
+                    File file = new File(dataFolder, entry.getKey().toString());
+                    Map<String, Double> merged = new HashMap<>();
+                    if (file.exists()) {
+                        LoadProgress progress = new LoadProgress(1);
+                        Map.Entry<UUID, Map<String, Double>> stored = loadBalances(file, progress);
+                        progress.logErrors();
+                        if (stored != null) {
+                            merged.putAll(stored.getValue());
+                        }
+                    }
+                    merged.putAll(entry.getValue());
+                    writeFile(entry.getKey(), merged);
                 }
             } catch (IOException ex) {
                 throw new CompletionException(ex);
             }
-        });
+        }, plugin.getStorageExecutor());
     }
 
     @Override
@@ -70,36 +234,144 @@ public class FileStorage implements BankStorage {
                 return Collections.emptyList();
             }
 
+            long startTime = System.currentTimeMillis();
+            Map<UUID, Map<String, Double>> values = new HashMap<>();
+            long snapshotTime = readSnapshot(values);
+
+            // Only files that have been written since the snapshot was taken need to be read
+            File[] files = Arrays.stream(dataFolder.listFiles())
+                .filter(file -> file.getName().length() == 36) // File name length matches UUID length
+                .filter(file -> snapshotTime < 0 || file.lastModified() >= snapshotTime - MODIFICATION_TOLERANCE)
+                .toArray(File[]::new);
+
+            if (files.length > 0) {
+                values.putAll(loadFiles(files));
+            }
+
+            // Take a new snapshot, so the next start only has to read the files changed from now on
+            CompletableFuture.runAsync(() -> writeSnapshot(values, startTime), plugin.getStorageExecutor());
+
+            List<BankAccount> result = new ArrayList<>(values.size());
+            values.forEach((uuid, balances) -> result.add(new BankAccount(plugin, plugin.getServer().getOfflinePlayer(uuid), balances)));
+            return result;
+        }, plugin.getStorageExecutor());
+    }
+
+    @Override
+    public CompletableFuture<Collection<BankAccount>> getAccounts(Collection<UUID> uuids) {
+        return CompletableFuture.supplyAsync(() -> {
+            LoadProgress progress = new LoadProgress(uuids.size());
             List<BankAccount> result = new ArrayList<>();
 
-            File[] files = dataFolder.listFiles();
-            for (File file : files) {
-                loadAccount(file).ifPresent(result::add);
+            for (UUID uuid : uuids) {
+                File file = new File(dataFolder, uuid.toString());
+                if (!file.exists()) {
+                    continue;
+                }
+
+                Map.Entry<UUID, Map<String, Double>> entry = loadBalances(file, progress);
+                if (entry != null) {
+                    result.add(new BankAccount(plugin, plugin.getServer().getOfflinePlayer(uuid), entry.getValue()));
+                }
             }
 
+            progress.logErrors();
             return result;
-        });
+        }, plugin.getStorageExecutor());
+    }
+
+    @Override
+    public CompletableFuture<Optional<BankAccount>> getAccount(UUID uuid) {
+        return getAccounts(Collections.singleton(uuid))
+            .thenApply(accounts -> accounts.stream().findAny());
+    }
+
+    /**
+     * Reads the snapshot of the stored balances into the given map.
+     * 
+     * @param values the map to fill with the balances
+     * @return the time at which the snapshot was taken or {@code -1} if none could be read
+     */
+    private long readSnapshot(Map<UUID, Map<String, Double>> values) {
+        try {
+            return SnapshotFile.read(snapshotFile, values);
+        } catch (IOException ex) {
+            plugin.getLogger().log(Level.WARNING, "Failed to read snapshot, loading all files instead", ex);
+            values.clear();
+            return -1;
+        }
     }
 
     /**
-     * Loads the bank account of the given file.
+     * Writes a snapshot of the given balances.
+     * 
+     * @param values the balances
+     * @param time the time at which loading the balances started
+     */
+    private void writeSnapshot(Map<UUID, Map<String, Double>> values, long time) {
+        try {
+            SnapshotFile.write(snapshotFile, time, values);
+        } catch (IOException ex) {
+            plugin.getLogger().log(Level.WARNING, "Failed to write snapshot", ex);
+        }
+    }
+
+    /**
+     * Loads the balances of the given files in parallel.
+     * <p>
+     * Failures are counted and logged as a summary instead of once per file.
+     * 
+     * @param files the files to load
+     * @return the balances mapped by the account owner's UUID and world name
+     */
+    private Map<UUID, Map<String, Double>> loadFiles(File[] files) {
+        int parallelism = plugin.getConfig().getInt("flatfile.load-parallelism");
+        if (parallelism <= 0) {
+            parallelism = Runtime.getRuntime().availableProcessors();
+        }
+
+        LoadProgress progress = new LoadProgress(files.length);
+        ForkJoinPool pool = new ForkJoinPool(Math.min(parallelism, files.length));
+        long startTime = System.currentTimeMillis();
+
+        try {
+            // Each worker collects into its own map, which are merged at the end
+            Map<UUID, Map<String, Double>> result = pool.submit(() -> Arrays.stream(files).parallel()
+                .map(file -> loadBalances(file, progress))
+                .filter(Objects::nonNull)
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue)))
+                .get();
+
+            plugin.getLogger().info("Read " + files.length + " account files in "
+                    + (System.currentTimeMillis() - startTime) + "ms");
+            progress.logErrors();
+            return result;
+        } catch (ExecutionException ex) {
+            throw new CompletionException(ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(ex);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Loads the balances stored in the given file.
      * 
      * @param file the file
-     * @return the bank account or an empty optional if it fails to load
+     * @param progress the progress to report to
+     * @return the account owner's UUID with the balances mapped by world name,
+     *         or {@code null} if it fails to load
      */
-    private Optional<BankAccount> loadAccount(File file) {
+    private Map.Entry<UUID, Map<String, Double>> loadBalances(File file, LoadProgress progress) {
         try {
+            UUID uuid = UUID.fromString(file.getName());
             List<String> lines = Files.readAllLines(file.toPath());
             if (lines.size() == 0) {
-                return Optional.empty();
-            }
-
-            if (file.getName().length() != 36) {
-                // File name length does not match UUID length
-                return Optional.empty();
+                return null;
             }
 
-            UUID uuid = UUID.fromString(file.getName());
             Map<String, Double> balances = new HashMap<>();
 
             for (String line : lines) {
@@ -123,11 +395,11 @@ public class FileStorage implements BankStorage {
                 try {
                     balance = Double.parseDouble(balanceStr);
                 } catch (NumberFormatException ex) {
-                    plugin.getLogger().severe("Failed to parse balance stored for player " + uuid.toString() + " in world " + worldName + ": " + balanceStr);
+                    progress.invalidBalance(uuid, worldName);
                 }
                 
                 if (balance < 0) {
-                    plugin.getLogger().warning("Negative balance stored for player " + uuid.toString() + " in world " + worldName);
+                    progress.invalidBalance(uuid, worldName);
                     balance = 0;
                 }
 
@@ -135,15 +407,62 @@ public class FileStorage implements BankStorage {
             }
 
             if (balances.isEmpty()) {
-                return Optional.empty();
+                return null;
             }
             
-            BankAccount account = new BankAccount(plugin, plugin.getServer().getOfflinePlayer(uuid), balances);
-            return Optional.of(account);
+            return new AbstractMap.SimpleImmutableEntry<>(uuid, balances);
         } catch (IOException | IllegalArgumentException ex) {
-            plugin.getLogger().log(Level.SEVERE, "Failed to load balance for player " + file.getName(), ex);
+            progress.failedFile(file, ex);
+        } finally {
+            progress.fileDone();
         }
 
-        return Optional.empty();
+        return null;
+    }
+
+    /**
+     * Tracks the progress and errors while loading account files from multiple threads.
+     */
+    private class LoadProgress {
+        private final int total;
+        private final int step;
+        private final AtomicInteger done = new AtomicInteger();
+        private final LongAdder failedFiles = new LongAdder();
+        private final LongAdder invalidBalances = new LongAdder();
+        private final AtomicReference<Exception> firstFailure = new AtomicReference<>();
+        private final AtomicReference<String> firstInvalidBalance = new AtomicReference<>();
+
+        private LoadProgress(int total) {
+            this.total = total;
+            // Only report progress when loading takes a while
+            this.step = total >= 10000 ? total / 10 : Integer.MAX_VALUE;
+        }
+
+        private void fileDone() {
+            int count = done.incrementAndGet();
+            if (count % step == 0) {
+                plugin.getLogger().info("Loading bank accounts... " + (count * 100L / total) + "%");
+            }
+        }
+
+        private void failedFile(File file, Exception ex) {
+            failedFiles.increment();
+            firstFailure.compareAndSet(null, new IOException("Failed to load balance for player " + file.getName(), ex));
+        }
+
+        private void invalidBalance(UUID uuid, String worldName) {
+            invalidBalances.increment();
+            firstInvalidBalance.compareAndSet(null, "player " + uuid + " in world " + worldName);
+        }
+
+        private void logErrors() {
+            if (failedFiles.sum() > 0) {
+                plugin.getLogger().log(Level.SEVERE, "Failed to load " + failedFiles.sum() + " account files", firstFailure.get());
+            }
+            if (invalidBalances.sum() > 0) {
+                plugin.getLogger().warning(invalidBalances.sum() + " stored balances are invalid or negative and have been reset to 0, "
+                        + "e.g. for " + firstInvalidBalance.get());
+            }
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,848 @@
+package de.epiceric.justmoney.storage;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+import de.epiceric.justmoney.JustMoney;
+import de.epiceric.justmoney.model.BankAccount;
+
+/**
+ * A bank account storage that appends balance changes to log segment files.
+ * <p>
+ * Each change is written as a small binary record with a checksum to the active
+ * segment. When a segment is full, a new one is started. Full segments are
+ * compacted in the background into a checkpoint {@link SnapshotFile} that holds
+ * the latest balance of every account, after which they are deleted. On startup, the
+ * checkpoint is read and the remaining segments are replayed on top of it.
+ * <p>
+ * Single accounts are looked up through an index of the positions of each
+ * account's records in the checkpoint and in the segments, which is built when
+ * it is first needed and kept up to date by writes and compactions.
+ * 
+ * @since 1.3
+ */
+public class LogStorage implements BankStorage {
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT_FILE = "checkpoint.snapshot";
+    private static final int MAX_RECORD_LENGTH = 1024;
+
+    private final JustMoney plugin;
+    private final File logFolder;
+    private final long segmentSize;
+    private final int compactThreshold;
+    private final boolean fsync;
+
+    private final Object writeLock = new Object();
+    private final Object compactLock = new Object();
+    private final AtomicBoolean compacting = new AtomicBoolean();
+
+    private FileChannel activeSegment;
+    private volatile long activeSequence;
+
+    // Guarded by the write lock, null until it is first needed, see getIndex
+    private ConcurrentNavigableMap<UUID, RecordPositions> index;
+
+    public LogStorage(JustMoney plugin) {
+        this.plugin = plugin;
+        this.logFolder = new File(plugin.getDataFolder(), "log");
+        this.segmentSize = Math.max(1, plugin.getConfig().getLong("log.segment-size")) * 1024;
+        this.compactThreshold = Math.max(1, plugin.getConfig().getInt("log.compact-threshold"));
+        this.fsync = plugin.getConfig().getBoolean("log.fsync");
+    }
+
+    @Override
+    public String getTypeName() {
+        return "Log File";
+    }
+
+    @Override
+    public CompletableFuture<Void> storeAccount(BankAccount account) {
+        return storeAccounts(Collections.singletonList(account));
+    }
+
+    @Override
+    public CompletableFuture<Void> storeAccounts(Collection<BankAccount> accounts) {
+        return CompletableFuture.runAsync(() -> {
+            Map<BankAccount, Map<String, Double>> changes = new HashMap<>();
+            RecordBuffer records = new RecordBuffer();
+
+            try {
+                for (BankAccount account : accounts) {
+                    Map<String, Double> accountChanges = account.pollChanges();
+                    if (accountChanges.isEmpty()) {
+                        continue;
+                    }
+                    changes.put(account, accountChanges);
+
+                    UUID uuid = account.getOwner().getUniqueId();
+                    for (Map.Entry<String, Double> entry : accountChanges.entrySet()) {
+                        records.add(uuid, entry.getKey(), entry.getValue());
+                    }
+                }
+
+                if (!records.isEmpty()) {
+                    append(records);
+                }
+            } catch (IOException ex) {
+                changes.forEach((account, accountChanges) -> account.restoreChanges(accountChanges.keySet()));
+                throw new CompletionException(ex);
+            } catch (RuntimeException ex) {
+                changes.forEach((account, accountChanges) -> account.restoreChanges(accountChanges.keySet()));
+                throw ex;
+            }
+        }, plugin.getStorageExecutor());
+    }
+
+    @Override
+    public CompletableFuture<Collection<BankAccount>> getAccounts() {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                logFolder.mkdirs();
+                Map<UUID, Map<String, Double>> values = loadValues();
+
+                // Always start with a fresh segment, so a damaged tail of the last one is never appended to
+                synchronized (writeLock) {
+                    if (activeSegment != null) {
+                        activeSegment.close();
+                    }
+                    openSegment(getNextSequence());
+                }
+
+                return createAccounts(values);
+            } catch (IOException ex) {
+                throw new CompletionException(ex);
+            }
+        }, plugin.getStorageExecutor());
+    }
+
+    @Override
+    public CompletableFuture<Collection<BankAccount>> getAccounts(Collection<UUID> uuids) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return createAccounts(readIndexed(uuids));
+            } catch (IOException ex) {
+                throw new CompletionException(ex);
+            }
+        }, plugin.getStorageExecutor());
+    }
+
+    @Override
+    public CompletableFuture<Optional<BankAccount>> getAccount(UUID uuid) {
+        return getAccounts(Collections.singleton(uuid))
+            .thenApply(accounts -> accounts.stream().findAny());
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The accounts are visited in the order of the record position index, and only the
+     * records of the accounts in the batch are read, so no balances are kept between batches.
+     */
+    @Override
+    public CompletableFuture<BalanceBatch> readBalances(String position, int limit) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                // The index must not be replaced between choosing the accounts and reading them
+                synchronized (compactLock) {
+                    NavigableMap<UUID, RecordPositions> positions = getIndex();
+                    NavigableMap<UUID, RecordPositions> remaining = position == null ? positions
+                        : positions.tailMap(UUID.fromString(position), false);
+
+                    List<UUID> uuids = new ArrayList<>();
+                    Iterator<UUID> iterator = remaining.keySet().iterator();
+                    while (uuids.size() < limit && iterator.hasNext()) {
+                        uuids.add(iterator.next());
+                    }
+
+                    Map<UUID, Map<String, Double>> balances = readIndexed(uuids);
+                    if (!iterator.hasNext()) {
+                        return new BalanceBatch(balances, null);
+                    }
+                    return new BalanceBatch(balances, uuids.get(uuids.size() - 1).toString());
+                }
+            } catch (IOException | IllegalArgumentException ex) {
+                throw new CompletionException(ex);
+            }
+        }, plugin.getStorageExecutor());
+    }
+
+    @Override
+    public CompletableFuture<Void> writeBalances(Map<UUID, Map<String, Double>> balances) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                RecordBuffer records = new RecordBuffer();
+                for (Map.Entry<UUID, Map<String, Double>> accountBalances : balances.entrySet()) {
+                    for (Map.Entry<String, Double> entry : accountBalances.getValue().entrySet()) {
+                        records.add(accountBalances.getKey(), entry.getKey(), entry.getValue());
+                    }
+                }
+
+                if (!records.isEmpty()) {
+                    append(records);
+                }
+            } catch (IOException ex) {
+                throw new CompletionException(ex);
+            }
+        }, plugin.getStorageExecutor());
+    }
+
+    /**
+     * Reads the checkpoint and replays all segments that are newer than it.
+     * 
+     * @return the balances mapped by the account owner's UUID and world name
+     * @throws IOException when the log could not be read
+     */
+    private Map<UUID, Map<String, Double>> loadValues() throws IOException {
+        // Segments must not be deleted by a compaction while they are read
+        synchronized (compactLock) {
+            Map<UUID, Map<String, Double>> values = new HashMap<>();
+            long checkpointSequence = readCheckpoint(values);
+
+            for (long sequence : getSegmentSequences()) {
+                if (sequence > checkpointSequence) {
+                    replaySegment(getSegmentFile(sequence), values);
+                }
+            }
+            return values;
+        }
+    }
+
+    /**
+     * Reads the balances of the given accounts at the positions stored in the index.
+     * <p>
+     * Only the records of the given accounts are read, instead of replaying the whole log.
+     * 
+     * @param uuids the UUIDs of the accounts to read
+     * @return the balances mapped by the account owner's UUID and world name, in the order of the
+     *         given UUIDs and without accounts that have never been stored
+     * @throws IOException when the log could not be read
+     */
+    private Map<UUID, Map<String, Double>> readIndexed(Collection<UUID> uuids) throws IOException {
+        // The checkpoint must not be replaced and segments must not be deleted while they are read
+        synchronized (compactLock) {
+            NavigableMap<UUID, RecordPositions> positions = getIndex();
+            File checkpointFile = new File(logFolder, CHECKPOINT_FILE);
+            Map<UUID, Map<String, Double>> values = new LinkedHashMap<>();
+            Map<Long, FileChannel> segments = new HashMap<>();
+
+            try (SnapshotFile.Reader checkpoint = checkpointFile.exists() ? new SnapshotFile.Reader(checkpointFile) : null) {
+                for (UUID uuid : uuids) {
+                    RecordPositions accountPositions = positions.get(uuid);
+                    if (accountPositions == null) {
+                        continue;
+                    }
+
+                    Map<String, Double> balances = new HashMap<>();
+                    if (accountPositions.checkpointRecord >= 0) {
+                        if (checkpoint == null) {
+                            throw new IOException("Checkpoint has been removed: " + checkpointFile.getName());
+                        }
+                        checkpoint.readBalances(accountPositions.checkpointRecord, accountPositions.checkpointRecords, balances);
+                    }
+                    for (long position : accountPositions.segmentRecords) {
+                        readSegmentRecord(segments, position, uuid, balances);
+                    }
+                    values.put(uuid, balances);
+                }
+            } finally {
+                for (FileChannel channel : segments.values()) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+            return values;
+        }
+    }
+
+    /**
+     * Gets the index of the positions of each account's records, building it if it does not exist yet.
+     * <p>
+     * The caller must hold the compact lock.
+     * 
+     * @return the record positions mapped by the account owner's UUID
+     * @throws IOException when the log could not be read
+     */
+    private NavigableMap<UUID, RecordPositions> getIndex() throws IOException {
+        // Appends must wait until the index is complete, so none of their records are missing
+        synchronized (writeLock) {
+            if (index == null) {
+                ConcurrentNavigableMap<UUID, RecordPositions> positions = new ConcurrentSkipListMap<>();
+                long checkpointSequence = indexCheckpoint(positions);
+
+                for (long sequence : getSegmentSequences()) {
+                    if (sequence > checkpointSequence) {
+                        indexSegment(sequence, positions);
+                    }
+                }
+                index = positions;
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Adds the positions of all accounts' records in the checkpoint to the given index.
+     * 
+     * @param positions the index to fill
+     * @return the sequence number of the last segment contained in the checkpoint
+     * @throws IOException when the checkpoint could not be read
+     */
+    private long indexCheckpoint(Map<UUID, RecordPositions> positions) throws IOException {
+        File file = new File(logFolder, CHECKPOINT_FILE);
+        if (!file.exists()) {
+            return 0;
+        }
+
+        try (SnapshotFile.Reader checkpoint = new SnapshotFile.Reader(file)) {
+            checkpoint.forEachAccount((uuid, firstRecord, recordCount) ->
+                positions.put(uuid, new RecordPositions(firstRecord, recordCount, RecordPositions.NO_RECORDS)));
+            return Math.max(0, checkpoint.getMarker());
+        }
+    }
+
+    /**
+     * Adds the positions of all records in the given segment to the given index.
+     * 
+     * @param sequence the segment's sequence number
+     * @param positions the index to add to
+     * @throws IOException when the segment could not be read
+     */
+    private void indexSegment(long sequence, Map<UUID, RecordPositions> positions) throws IOException {
+        File file = getSegmentFile(sequence);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            long offset = 0;
+            while (true) {
+                LogRecord record;
+                try {
+                    record = readRecord(in);
+                } catch (EOFException ex) {
+                    break;
+                }
+                if (record == null) {
+                    plugin.getLogger().warning("Ignoring damaged tail of log segment " + file.getName());
+                    break;
+                }
+
+                long position = getRecordPosition(sequence, offset);
+                positions.merge(record.uuid, new RecordPositions(-1, 0, new long[] { position }), RecordPositions::append);
+                offset += record.size;
+            }
+        }
+    }
+
+    /**
+     * Reads the record at the given position and puts its balance into the given map.
+     * 
+     * @param segments the open segment files mapped by their sequence number, to which the segment is added
+     * @param position the record's position, see {@link #getRecordPosition(long, long)}
+     * @param uuid the UUID of the account the record belongs to
+     * @param balances the map to put the balance into, mapped by world name
+     * @throws IOException when the record could not be read or is damaged
+     */
+    private void readSegmentRecord(Map<Long, FileChannel> segments, long position, UUID uuid,
+            Map<String, Double> balances) throws IOException {
+        long sequence = position >>> 32;
+        long offset = position & 0xFFFFFFFFL;
+
+        FileChannel channel = segments.get(sequence);
+        if (channel == null) {
+            channel = FileChannel.open(getSegmentFile(sequence).toPath(), StandardOpenOption.READ);
+            segments.put(sequence, channel);
+        }
+
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(channel, length, offset);
+        int payloadLength = length.getInt(0);
+        if (payloadLength <= 0 || payloadLength > MAX_RECORD_LENGTH) {
+            throw new IOException("Log segment is damaged: " + getSegmentFile(sequence).getName());
+        }
+
+        ByteBuffer data = ByteBuffer.allocate(4 + payloadLength + 4);
+        readFully(channel, data, offset);
+        LogRecord record = readRecord(new DataInputStream(new ByteArrayInputStream(data.array())));
+        if (record == null || !record.uuid.equals(uuid)) {
+            throw new IOException("Log segment is damaged: " + getSegmentFile(sequence).getName());
+        }
+        balances.put(record.worldName, record.balance);
+    }
+
+    /**
+     * Fills the given buffer with the bytes of the given file starting at the given position.
+     * 
+     * @throws EOFException when the file ends before the buffer is full
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    /**
+     * Packs the sequence number of a segment and the offset of a record in it into a position.
+     * 
+     * @param sequence the segment's sequence number
+     * @param offset the record's offset in bytes
+     * @return the record's position
+     * @throws IOException when the position does not fit into the index
+     */
+    private static long getRecordPosition(long sequence, long offset) throws IOException {
+        if (sequence >= 1L << 31 || offset >= 1L << 32) {
+            throw new IOException("Log segment is too large to be indexed: " + sequence);
+        }
+        return sequence << 32 | offset;
+    }
+
+    /**
+     * Creates bank accounts with the given balances.
+     * 
+     * @param values the balances mapped by the account owner's UUID and world name
+     * @return the bank accounts
+     */
+    private List<BankAccount> createAccounts(Map<UUID, Map<String, Double>> values) {
+        List<BankAccount> result = new ArrayList<>(values.size());
+        values.forEach((uuid, balances) -> result.add(new BankAccount(plugin, plugin.getServer().getOfflinePlayer(uuid), balances)));
+        return result;
+    }
+
+    @Override
+    public void close() {
+        synchronized (writeLock) {
+            if (activeSegment != null) {
+                try {
+                    activeSegment.force(true);
+                    activeSegment.close();
+                } catch (IOException ex) {
+                    plugin.getLogger().log(Level.SEVERE, "Failed to close log segment", ex);
+                }
+                activeSegment = null;
+            }
+        }
+    }
+
+    /**
+     * Appends the given records to the active segment and starts a new segment if it is full.
+     * 
+     * @param records the encoded records
+     * @throws IOException when the records could not be written
+     */
+    private void append(RecordBuffer records) throws IOException {
+        boolean rotated = false;
+
+        synchronized (writeLock) {
+            if (activeSegment == null) {
+                logFolder.mkdirs();
+                openSegment(getNextSequence());
+            }
+
+            long start = activeSegment.size();
+            ByteBuffer buffer = ByteBuffer.wrap(records.bytes.toByteArray());
+            try {
+                while (buffer.hasRemaining()) {
+                    activeSegment.write(buffer);
+                }
+                if (fsync) {
+                    activeSegment.force(false);
+                }
+            } catch (IOException ex) {
+                discardTornRecords(start);
+                throw ex;
+            }
+
+            if (index != null) {
+                for (int i = 0; i < records.uuids.size(); i++) {
+                    long position = getRecordPosition(activeSequence, start + records.offsets.get(i));
+                    index.merge(records.uuids.get(i), new RecordPositions(-1, 0, new long[] { position }), RecordPositions::append);
+                }
+            }
+
+            if (activeSegment.size() >= segmentSize) {
+                activeSegment.force(true);
+                activeSegment.close();
+                openSegment(activeSequence + 1);
+                rotated = true;
+            }
+        }
+
+        if (rotated) {
+            compactIfNeeded();
+        }
+    }
+
+    /**
+     * Removes the partly written records after the given position from the active segment.
+     * <p>
+     * Replaying a segment stops at the first damaged record, so records appended after
+     * them would be lost. If the segment cannot be truncated, it is closed instead and
+     * the next records are written to a new segment.
+     * 
+     * @param start the size of the segment before the records were written
+     */
+    private void discardTornRecords(long start) {
+        try {
+            activeSegment.truncate(start);
+            return;
+        } catch (IOException ex) {
+            plugin.getLogger().log(Level.SEVERE, "Failed to remove partly written records from log segment "
+                    + activeSequence + ", starting a new segment", ex);
+        }
+
+        try {
+            activeSegment.close();
+        } catch (IOException ex) {
+            plugin.getLogger().log(Level.SEVERE, "Failed to close log segment", ex);
+        }
+        activeSegment = null;
+    }
+
+    /**
+     * Gets the sequence number for a new segment, which is higher than the
+     * ones of all existing segments and of the checkpoint.
+     * 
+     * @return the sequence number
+     * @throws IOException when the checkpoint could not be read
+     */
+    private long getNextSequence() throws IOException {
+        List<Long> sequences = getSegmentSequences();
+        long lastSequence = sequences.isEmpty() ? 0 : sequences.get(sequences.size() - 1);
+        long checkpointSequence = SnapshotFile.readMarker(new File(logFolder, CHECKPOINT_FILE));
+        return Math.max(lastSequence, checkpointSequence) + 1;
+    }
+
+    /**
+     * Opens the segment with the given sequence number as the active segment.
+     * 
+     * @param sequence the sequence number
+     * @throws IOException when the segment could not be opened
+     */
+    private void openSegment(long sequence) throws IOException {
+        activeSequence = sequence;
+        activeSegment = FileChannel.open(getSegmentFile(sequence).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Starts compacting the full segments in the background if there are enough of them.
+     */
+    private void compactIfNeeded() {
+        long sealedSegments = getSegmentSequences().stream().filter(seq -> seq < activeSequence).count();
+        if (sealedSegments < compactThreshold || !compacting.compareAndSet(false, true)) {
+            return;
+        }
+
+        CompletableFuture.runAsync(this::compact, plugin.getStorageExecutor()).whenComplete((result, ex) -> {
+            compacting.set(false);
+            if (ex != null) {
+                plugin.getLogger().log(Level.SEVERE, "Failed to compact log segments", ex);
+            }
+        });
+    }
+
+    /**
+     * Merges the checkpoint with all full segments into a new checkpoint and deletes those segments.
+     */
+    private void compact() {
+        synchronized (compactLock) {
+            long lastSealed;
+            synchronized (writeLock) {
+                lastSealed = activeSequence - 1;
+            }
+
+            try {
+                Map<UUID, Map<String, Double>> values = new HashMap<>();
+                long checkpointSequence = readCheckpoint(values);
+
+                List<Long> compacted = new ArrayList<>();
+                for (long sequence : getSegmentSequences()) {
+                    if (sequence > lastSealed) {
+                        break;
+                    }
+                    if (sequence > checkpointSequence) {
+                        replaySegment(getSegmentFile(sequence), values);
+                    }
+                    compacted.add(sequence);
+                }
+
+                SnapshotFile.write(new File(logFolder, CHECKPOINT_FILE), lastSealed, values);
+
+                for (long sequence : compacted) {
+                    Files.deleteIfExists(getSegmentFile(sequence).toPath());
+                }
+
+                if (index != null) {
+                    ConcurrentNavigableMap<UUID, RecordPositions> positions = new ConcurrentSkipListMap<>();
+                    indexCheckpoint(positions);
+
+                    // Records appended meanwhile are in the active segment and are kept
+                    synchronized (writeLock) {
+                        index.forEach((uuid, accountPositions) -> {
+                            RecordPositions kept = accountPositions.retainSegmentsAfter(lastSealed);
+                            if (kept.segmentRecords.length > 0) {
+                                positions.merge(uuid, kept, RecordPositions::append);
+                            }
+                        });
+                        index = positions;
+                    }
+                }
+            } catch (IOException ex) {
+                // The index might point to the old checkpoint, so it is built again when it is needed
+                synchronized (writeLock) {
+                    index = null;
+                }
+                throw new CompletionException(ex);
+            }
+        }
+    }
+
+    /**
+     * Reads the checkpoint into the given map.
+     * 
+     * @param values the map to fill with the balances
+     * @return the sequence number of the last segment contained in the checkpoint
+     * @throws IOException when the checkpoint could not be read
+     */
+    private long readCheckpoint(Map<UUID, Map<String, Double>> values) throws IOException {
+        return Math.max(0, SnapshotFile.read(new File(logFolder, CHECKPOINT_FILE), values));
+    }
+
+    /**
+     * Applies all records of the given segment to the given map.
+     * <p>
+     * Reading stops at the first incomplete or damaged record, which can only
+     * be the result of a crash while the segment was written.
+     * 
+     * @param file the segment file
+     * @param values the map to apply the balances to
+     * @throws IOException when the segment could not be read
+     */
+    private void replaySegment(File file, Map<UUID, Map<String, Double>> values) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                LogRecord record;
+                try {
+                    record = readRecord(in);
+                } catch (EOFException ex) {
+                    break;
+                }
+                if (record == null) {
+                    plugin.getLogger().warning("Ignoring damaged tail of log segment " + file.getName());
+                    break;
+                }
+                values.computeIfAbsent(record.uuid, key -> new HashMap<>()).put(record.worldName, record.balance);
+            }
+        }
+    }
+
+    /**
+     * Writes a balance record.
+     * <p>
+     * Format: payload length (int), UUID (two longs), world name (UTF), balance (double), CRC32 of the payload (int)
+     * 
+     * @param out the stream to write to
+     * @param uuid the account owner's UUID
+     * @param worldName the world name
+     * @param balance the balance
+     * @throws IOException when the record could not be written
+     */
+    private static void writeRecord(OutputStream out, UUID uuid, String worldName, double balance) throws IOException {
+        ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream(48);
+        DataOutputStream payload = new DataOutputStream(payloadBytes);
+        payload.writeLong(uuid.getMostSignificantBits());
+        payload.writeLong(uuid.getLeastSignificantBits());
+        payload.writeUTF(worldName);
+        payload.writeDouble(balance);
+
+        byte[] data = payloadBytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+
+        DataOutputStream dataOut = new DataOutputStream(out);
+        dataOut.writeInt(data.length);
+        dataOut.write(data);
+        dataOut.writeInt((int) crc.getValue());
+        dataOut.flush();
+    }
+
+    /**
+     * Reads a balance record.
+     * 
+     * @param in the stream to read from
+     * @return the record or {@code null} if it is incomplete or damaged
+     * @throws EOFException when the end of the stream has been reached before the record starts
+     * @throws IOException when the record could not be read
+     */
+    private static LogRecord readRecord(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length <= 0 || length > MAX_RECORD_LENGTH) {
+            return null;
+        }
+
+        byte[] data = new byte[length];
+        int crcValue;
+        try {
+            in.readFully(data);
+            crcValue = in.readInt();
+        } catch (EOFException ex) {
+            return null;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        if ((int) crc.getValue() != crcValue) {
+            return null;
+        }
+
+        DataInputStream payload = new DataInputStream(new ByteArrayInputStream(data));
+        UUID uuid = new UUID(payload.readLong(), payload.readLong());
+        String worldName = payload.readUTF();
+        double balance = payload.readDouble();
+        return new LogRecord(uuid, worldName, balance, 4 + length + 4);
+    }
+
+    /**
+     * Gets the sequence numbers of all segment files in ascending order.
+     * 
+     * @return the sequence numbers
+     */
+    private List<Long> getSegmentSequences() {
+        List<Long> result = new ArrayList<>();
+        File[] files = logFolder.listFiles();
+        if (files == null) {
+            return result;
+        }
+
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    result.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * Gets the file of the segment with the given sequence number.
+     * 
+     * @param sequence the sequence number
+     * @return the segment file
+     */
+    private File getSegmentFile(long sequence) {
+        return new File(logFolder, String.format("%s%016d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * A balance record read from a segment.
+     */
+    private static final class LogRecord {
+        private final UUID uuid;
+        private final String worldName;
+        private final double balance;
+        private final int size;
+
+        private LogRecord(UUID uuid, String worldName, double balance, int size) {
+            this.uuid = uuid;
+            this.worldName = worldName;
+            this.balance = balance;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Encoded records that are appended together, with the account and offset of each record.
+     */
+    private static final class RecordBuffer {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final List<UUID> uuids = new ArrayList<>();
+        private final List<Integer> offsets = new ArrayList<>();
+
+        private void add(UUID uuid, String worldName, double balance) throws IOException {
+            uuids.add(uuid);
+            offsets.add(bytes.size());
+            writeRecord(bytes, uuid, worldName, balance);
+        }
+
+        private boolean isEmpty() {
+            return bytes.size() == 0;
+        }
+    }
+
+    /**
+     * The positions of an account's records in the checkpoint and in the segments.
+     * <p>
+     * Instances are never changed, so they can be read while the index is updated.
+     */
+    private static final class RecordPositions {
+        private static final long[] NO_RECORDS = new long[0];
+
+        // The number of the first record in the checkpoint or -1 if the account is not in it
+        private final long checkpointRecord;
+        private final int checkpointRecords;
+        // The positions of the records in the segments in the order they were written, see getRecordPosition
+        private final long[] segmentRecords;
+
+        private RecordPositions(long checkpointRecord, int checkpointRecords, long[] segmentRecords) {
+            this.checkpointRecord = checkpointRecord;
+            this.checkpointRecords = checkpointRecords;
+            this.segmentRecords = segmentRecords;
+        }
+
+        /**
+         * Adds the segment records of the given positions after the ones of these positions.
+         */
+        private RecordPositions append(RecordPositions later) {
+            long[] records = Arrays.copyOf(segmentRecords, segmentRecords.length + later.segmentRecords.length);
+            System.arraycopy(later.segmentRecords, 0, records, segmentRecords.length, later.segmentRecords.length);
+            return new RecordPositions(checkpointRecord, checkpointRecords, records);
+        }
+
+        /**
+         * Gets only the segment records in segments newer than the given sequence number.
+         */
+        private RecordPositions retainSegmentsAfter(long sequence) {
+            long[] records = Arrays.stream(segmentRecords)
+                .filter(position -> position >>> 32 > sequence)
+                .toArray();
+            return new RecordPositions(-1, 0, records);
+        }
+    }
+}
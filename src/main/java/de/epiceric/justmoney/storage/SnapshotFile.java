@@ -0,0 +1,382 @@
+package de.epiceric.justmoney.storage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Reads and writes binary snapshots of all stored balances.
+ * <p>
+ * A snapshot consists of a header with the world names, followed by fixed-size
+ * records of the account owner's UUID (two longs), the world's index in the
+ * header (int) and the balance (double). The records are read through a
+ * memory-mapped buffer, so loading does not need any parsing.
+ * 
+ * @since 1.3
+ */
+public final class SnapshotFile {
+    private static final int MAGIC = 0x4A4D534E; // "JMSN"
+    private static final int VERSION = 1;
+    private static final int RECORD_SIZE = 8 + 8 + 4 + 8;
+
+    /**
+     * Maximum amount of bytes mapped at once, a multiple of the record size.
+     */
+    private static final long MAX_MAPPED_BYTES = (Integer.MAX_VALUE / RECORD_SIZE) * (long) RECORD_SIZE;
+
+    private SnapshotFile() {
+    }
+
+    /**
+     * Reads the snapshot in the given file into the given map.
+     * <p>
+     * Balances already contained in the map are overridden.
+     * 
+     * @param file the snapshot file
+     * @param values the map to fill with the balances
+     * @return the marker that was passed when the snapshot was written, or {@code -1} if the file does not exist
+     * @throws IOException when the snapshot could not be read or is damaged
+     * @since 1.3
+     */
+    public static long read(File file, Map<UUID, Map<String, Double>> values) throws IOException {
+        return read(file, values, null);
+    }
+
+    /**
+     * Reads the balances of the given accounts from the snapshot in the given file into the given map.
+     * <p>
+     * Balances already contained in the map are overridden.
+     * 
+     * @param file the snapshot file
+     * @param values the map to fill with the balances
+     * @param filter the UUIDs of the accounts to read or {@code null} to read all accounts
+     * @return the marker that was passed when the snapshot was written, or {@code -1} if the file does not exist
+     * @throws IOException when the snapshot could not be read or is damaged
+     * @since 1.3
+     */
+    public static long read(File file, Map<UUID, Map<String, Double>> values, Set<UUID> filter) throws IOException {
+        if (!file.exists()) {
+            return -1;
+        }
+
+        try (Reader reader = new Reader(file)) {
+            FileChannel channel = reader.channel;
+            String[] worldNames = reader.worldNames;
+            long fileSize = channel.size();
+            long position = reader.recordsStart;
+
+            UUID lastUuid = null;
+            Map<String, Double> balances = null;
+
+            while (position < fileSize) {
+                long length = Math.min(fileSize - position, MAX_MAPPED_BYTES);
+                MappedByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+
+                while (records.hasRemaining()) {
+                    long mostSigBits = records.getLong();
+                    long leastSigBits = records.getLong();
+                    int worldIndex = records.getInt();
+                    double balance = records.getDouble();
+
+                    // Records of the same account are written next to each other
+                    if (lastUuid == null || lastUuid.getMostSignificantBits() != mostSigBits
+                            || lastUuid.getLeastSignificantBits() != leastSigBits) {
+                        lastUuid = new UUID(mostSigBits, leastSigBits);
+                        balances = filter == null || filter.contains(lastUuid)
+                            ? values.computeIfAbsent(lastUuid, key -> new HashMap<>())
+                            : null;
+                    }
+
+                    if (worldIndex < 0 || worldIndex >= worldNames.length) {
+                        throw new IOException("Snapshot is damaged: " + file.getName());
+                    }
+                    if (balances != null) {
+                        balances.put(worldNames[worldIndex], balance);
+                    }
+                }
+
+                position += length;
+            }
+
+            return reader.marker;
+        }
+    }
+
+    /**
+     * Reads only the marker of the snapshot in the given file.
+     * 
+     * @param file the snapshot file
+     * @return the marker that was passed when the snapshot was written, or {@code -1} if the file does not exist
+     * @throws IOException when the snapshot could not be read
+     * @since 1.3
+     */
+    public static long readMarker(File file) throws IOException {
+        if (!file.exists()) {
+            return -1;
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(16);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // Read until the header is complete or the file ends
+            }
+            header.flip();
+
+            if (header.remaining() < 16 || header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Unknown snapshot format: " + file.getName());
+            }
+            return header.getLong();
+        }
+    }
+
+    /**
+     * Writes a snapshot of the given balances to the given file.
+     * <p>
+     * The snapshot is first written to a temporary file, which then replaces the given file.
+     * 
+     * @param file the snapshot file
+     * @param marker a value to store with the snapshot, e.g. a timestamp or sequence number
+     * @param values the balances mapped by the account owner's UUID and world name
+     * @throws IOException when the snapshot could not be written
+     * @since 1.3
+     */
+    public static void write(File file, long marker, Map<UUID, Map<String, Double>> values) throws IOException {
+        List<String> worldNames = new ArrayList<>();
+        Map<String, Integer> worldIndices = new HashMap<>();
+        long recordCount = 0;
+
+        for (Map<String, Double> balances : values.values()) {
+            for (String worldName : balances.keySet()) {
+                if (!worldIndices.containsKey(worldName)) {
+                    worldIndices.put(worldName, worldNames.size());
+                    worldNames.add(worldName);
+                }
+            }
+            recordCount += balances.size();
+        }
+
+        File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        file.getParentFile().mkdirs();
+
+        try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putLong(marker);
+            buffer.putInt(worldNames.size());
+            for (String worldName : worldNames) {
+                byte[] name = worldName.getBytes(StandardCharsets.UTF_8);
+                ensureRemaining(channel, buffer, 2 + name.length);
+                buffer.putShort((short) name.length);
+                buffer.put(name);
+            }
+            ensureRemaining(channel, buffer, 8);
+            buffer.putLong(recordCount);
+
+            for (Map.Entry<UUID, Map<String, Double>> account : values.entrySet()) {
+                UUID uuid = account.getKey();
+                for (Map.Entry<String, Double> balance : account.getValue().entrySet()) {
+                    ensureRemaining(channel, buffer, RECORD_SIZE);
+                    buffer.putLong(uuid.getMostSignificantBits());
+                    buffer.putLong(uuid.getLeastSignificantBits());
+                    buffer.putInt(worldIndices.get(balance.getKey()));
+                    buffer.putDouble(balance.getValue());
+                }
+            }
+
+            flush(channel, buffer);
+            channel.force(true);
+        }
+
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads the records of single accounts from a snapshot file, so an index of the
+     * snapshot can be used instead of loading it into memory.
+     */
+    static final class Reader implements Closeable {
+        private final String fileName;
+        private final FileChannel channel;
+        private final String[] worldNames;
+        private final long recordsStart;
+        private final long recordCount;
+        private final long marker;
+
+        /**
+         * Opens the snapshot in the given file and reads its header.
+         * 
+         * @param file the snapshot file, which must exist
+         * @throws IOException when the snapshot could not be read or is damaged
+         */
+        Reader(File file) throws IOException {
+            this.fileName = file.getName();
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+            try {
+                long fileSize = channel.size();
+                MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(fileSize, MAX_MAPPED_BYTES));
+
+                if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                    throw new IOException("Unknown snapshot format: " + fileName);
+                }
+
+                this.marker = header.getLong();
+                this.worldNames = new String[header.getInt()];
+                for (int i = 0; i < worldNames.length; i++) {
+                    byte[] name = new byte[header.getShort() & 0xFFFF];
+                    header.get(name);
+                    worldNames[i] = new String(name, StandardCharsets.UTF_8);
+                }
+
+                this.recordCount = header.getLong();
+                this.recordsStart = header.position();
+                if (recordsStart + recordCount * RECORD_SIZE != fileSize) {
+                    throw new IOException("Snapshot is damaged: " + fileName);
+                }
+            } catch (IOException | RuntimeException ex) {
+                channel.close();
+                throw ex instanceof IOException ? (IOException) ex : new IOException("Snapshot is damaged: " + fileName, ex);
+            }
+        }
+
+        /**
+         * Gets the marker that was passed when the snapshot was written.
+         * 
+         * @return the marker
+         */
+        long getMarker() {
+            return marker;
+        }
+
+        /**
+         * Passes the position of every account's records to the given visitor, in the order of the records.
+         * 
+         * @param visitor the visitor
+         * @throws IOException when the snapshot could not be read
+         */
+        void forEachAccount(AccountVisitor visitor) throws IOException {
+            long fileSize = channel.size();
+            long position = recordsStart;
+            long record = 0;
+
+            UUID lastUuid = null;
+            long firstRecord = 0;
+
+            while (position < fileSize) {
+                long length = Math.min(fileSize - position, MAX_MAPPED_BYTES);
+                MappedByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+
+                while (records.hasRemaining()) {
+                    long mostSigBits = records.getLong();
+                    long leastSigBits = records.getLong();
+                    records.position(records.position() + 4 + 8);
+
+                    if (lastUuid == null || lastUuid.getMostSignificantBits() != mostSigBits
+                            || lastUuid.getLeastSignificantBits() != leastSigBits) {
+                        if (lastUuid != null) {
+                            visitor.visit(lastUuid, firstRecord, (int) (record - firstRecord));
+                        }
+                        lastUuid = new UUID(mostSigBits, leastSigBits);
+                        firstRecord = record;
+                    }
+                    record++;
+                }
+
+                position += length;
+            }
+
+            if (lastUuid != null) {
+                visitor.visit(lastUuid, firstRecord, (int) (record - firstRecord));
+            }
+        }
+
+        /**
+         * Reads the given records of one account into the given map.
+         * 
+         * @param firstRecord the number of the account's first record
+         * @param count the amount of the account's records
+         * @param balances the map to put the balances into, mapped by world name
+         * @throws IOException when the records could not be read or are damaged
+         */
+        void readBalances(long firstRecord, int count, Map<String, Double> balances) throws IOException {
+            if (firstRecord < 0 || count < 0 || firstRecord + count > recordCount) {
+                throw new IOException("Snapshot is damaged: " + fileName);
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(count * RECORD_SIZE);
+            long position = recordsStart + firstRecord * RECORD_SIZE;
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("Snapshot is damaged: " + fileName);
+                }
+            }
+            buffer.flip();
+
+            while (buffer.hasRemaining()) {
+                buffer.position(buffer.position() + 8 + 8);
+                int worldIndex = buffer.getInt();
+                double balance = buffer.getDouble();
+                if (worldIndex < 0 || worldIndex >= worldNames.length) {
+                    throw new IOException("Snapshot is damaged: " + fileName);
+                }
+                balances.put(worldNames[worldIndex], balance);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Receives the position of an account's records in a snapshot.
+     */
+    @FunctionalInterface
+    interface AccountVisitor {
+        /**
+         * Visits the records of an account.
+         * 
+         * @param uuid the account owner's UUID
+         * @param firstRecord the number of the account's first record
+         * @param recordCount the amount of the account's records
+         */
+        void visit(UUID uuid, long firstRecord, int recordCount);
+    }
+
+    /**
+     * Flushes the buffer if it cannot hold the given amount of bytes anymore.
+     */
+    private static void ensureRemaining(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush(channel, buffer);
+        }
+    }
+
+    /**
+     * Writes the content of the buffer to the channel and clears it.
+     */
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
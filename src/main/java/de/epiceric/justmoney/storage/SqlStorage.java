@@ -7,104 +7,1170 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import org.bukkit.World;
+import org.bukkit.scheduler.BukkitTask;
 
 import de.epiceric.justmoney.JustMoney;
+import de.epiceric.justmoney.model.AccountTable;
 import de.epiceric.justmoney.model.BankAccount;
+import de.epiceric.justmoney.model.MoneyScale;
+import de.epiceric.justmoney.storage.sql.ConnectionPool;
 
 /**
  * An abstract bank account storage using SQL.
+ * <p>
+ * Since schema version 2, UUIDs are stored as two BIGINT columns, world names are
+ * kept once in a lookup table and referenced by a small number, and balances are
+ * stored as BIGINT minor units. Databases with the old schema are converted on
+ * startup in batches, which continues where it left off if it is interrupted.
+ * <p>
+ * In multi-server mode, several servers share the same database and each keeps
+ * its accounts in memory. Every row then carries a version, which is increased
+ * with each write. A server only updates a row if its version has not changed
+ * since the server has last read or written it. Otherwise, the row is read again
+ * and the server's change to the balance is added to the new balance. Rows that
+ * other servers have changed are read periodically, and their changes are added
+ * to the balances in memory.
  * 
  * @since 1.0
  */
 public abstract class SqlStorage implements BankStorage {
-    private static final String QUERY_STORE = "REPLACE INTO justmoney (uuid, world_name, balance) VALUES (?,?,?)";
-    private static final String QUERY_LOAD = "SELECT uuid, world_name, balance FROM justmoney";
+    /**
+     * The current version of the database schema.
+     */
+    private static final int SCHEMA_VERSION = 2;
+
+    private static final String QUERY_LOAD = "SELECT %s FROM justmoney_balances ORDER BY uuid_msb, uuid_lsb";
+    private static final String QUERY_LOAD_KEYS = "SELECT %s FROM justmoney_balances "
+        + "WHERE uuid_msb IN (%s) ORDER BY uuid_msb, uuid_lsb";
+    private static final String QUERY_READ_FIRST = "SELECT uuid_msb, uuid_lsb, world_id, balance FROM justmoney_balances "
+        + "ORDER BY uuid_msb, uuid_lsb, world_id LIMIT %d";
+    private static final String QUERY_READ_NEXT = "SELECT uuid_msb, uuid_lsb, world_id, balance FROM justmoney_balances "
+        + "WHERE uuid_msb > ? OR (uuid_msb = ? AND (uuid_lsb > ? OR (uuid_lsb = ? AND world_id > ?))) "
+        + "ORDER BY uuid_msb, uuid_lsb, world_id LIMIT %d";
+    private static final String QUERY_LOAD_WORLDS = "SELECT id, name FROM justmoney_worlds";
+    private static final String QUERY_INSERT_WORLD = "INSERT INTO justmoney_worlds (id, name) "
+        + "SELECT COALESCE(MAX(id), 0) + 1, ? FROM justmoney_worlds";
+    private static final String QUERY_GET_META = "SELECT meta_value FROM justmoney_meta WHERE meta_key = ?";
+    private static final String QUERY_UPDATE_META = "UPDATE justmoney_meta SET meta_value = ? WHERE meta_key = ?";
+    private static final String QUERY_INSERT_META = "INSERT INTO justmoney_meta (meta_value, meta_key) VALUES (?,?)";
+    private static final String QUERY_MIGRATE_LOAD = "SELECT uuid, world_name, balance FROM justmoney "
+        + "WHERE uuid > ? OR (uuid = ? AND world_name > ?) ORDER BY uuid, world_name LIMIT %d";
+    private static final String QUERY_UPDATE_VERSIONED = "UPDATE justmoney_balances SET balance = ?, version = version + 1, "
+        + "modified = %s WHERE uuid_msb = ? AND uuid_lsb = ? AND world_id = ? AND version = ?";
+    private static final String QUERY_INSERT_VERSIONED = "INSERT INTO justmoney_balances "
+        + "(uuid_msb, uuid_lsb, world_id, balance, version, modified) VALUES (?,?,?,?,1,%s)";
+    private static final String QUERY_LOCK_ROW = "SELECT balance, version FROM justmoney_balances "
+        + "WHERE uuid_msb = ? AND uuid_lsb = ? AND world_id = ? FOR UPDATE";
+    private static final String QUERY_CHANGED_ROWS = "SELECT uuid_msb, uuid_lsb, world_id, balance, version "
+        + "FROM justmoney_balances WHERE modified >= ?";
+    private static final int MAX_KEYS_PER_QUERY = 500;
+    private static final int MIGRATION_BATCH_SIZE = 1000;
+
+    /**
+     * Maximum amount of attempts to write a row that other servers keep changing.
+     */
+    private static final int MAX_WRITE_ATTEMPTS = 5;
+
+    /**
+     * Time in milliseconds by which the refresh reads further back than the last refresh,
+     * so rows of transactions that have been committed late are not missed.
+     */
+    private static final long REFRESH_OVERLAP = 5000;
 
     protected final JustMoney plugin;
+    private ConnectionPool pool;
+    private boolean initialized = false;
+
+    // Scale of the stored minor units, which is kept if the configured decimal places change
+    private volatile MoneyScale storedScale;
+    private final Map<String, Integer> worldIds = new ConcurrentHashMap<>();
+    private final Map<Integer, String> worldNames = new ConcurrentHashMap<>();
+
+    // Rows as last read or written by this server in multi-server mode, mapped by UUID and world name
+    private final Map<UUID, Map<String, StoredRow>> storedRows = new ConcurrentHashMap<>();
+    private final Object syncLock = new Object();
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private volatile long lastRefresh;
+    private BukkitTask refreshTask;
 
     public SqlStorage(JustMoney plugin) {
         this.plugin = plugin;
     }
 
     /**
-     * Creates a connection to the SQL database.
+     * Gets the query that inserts a balance into the "justmoney_balances" table or updates
+     * it if it already exists.
+     * <p>
+     * The parameters are the two halves of the player's UUID, the world's number and the
+     * balance in minor units.
+     * 
+     * @return the upsert query
+     * @since 1.3
+     */
+    protected abstract String getUpsertQuery();
+
+    /**
+     * Gets whether the database is shared with other servers, which requires versioned writes.
+     * 
+     * @return whether multi-server mode is enabled
+     * @since 1.3
+     */
+    protected boolean isMultiServer() {
+        return false;
+    }
+
+    /**
+     * Gets the SQL expression for the database server's current time in milliseconds.
+     * <p>
+     * In multi-server mode, this is stored with every write, so other servers can find the changed rows.
+     * 
+     * @return the time expression or {@code null} if multi-server mode is not supported
+     * @since 1.3
+     */
+    protected String getClockExpression() {
+        return null;
+    }
+
+    /**
+     * Gets the interval in which changes of other servers are read in multi-server mode.
+     * 
+     * @return the interval in ticks
+     * @since 1.3
+     */
+    protected long getRefreshInterval() {
+        return 20;
+    }
+
+    /**
+     * Gets the amount of rows that are fetched at once when loading the accounts.
+     * 
+     * @return the fetch size or {@code 0} to use the driver's default
+     * @since 1.3
+     */
+    protected int getFetchSize() {
+        return 0;
+    }
+
+    /**
+     * Creates the pool of connections to the SQL database.
+     * 
+     * @return the connection pool
+     * @throws SQLException when the database driver could not be loaded
+     * @since 1.3
+     */
+    protected abstract ConnectionPool createPool() throws SQLException;
+
+    /**
+     * Gets a connection to the SQL database from the connection pool.
+     * <p>
+     * The connection has to be closed to return it to the pool.
      * 
      * @return the connection
      * @throws SQLException when a connection could not be established
      * @since 1.0
      */
-    protected abstract Connection getConnection() throws SQLException;
+    protected Connection getConnection() throws SQLException {
+        ConnectionPool pool;
+        synchronized (this) {
+            if (this.pool == null) {
+                this.pool = createPool();
+            }
+            pool = this.pool;
+        }
+        return pool.getConnection();
+    }
+
+    /**
+     * Gets a connection used only for loading accounts.
+     * <p>
+     * By default, this is a connection from the same pool that is used for writing.
+     * The connection has to be closed to return it to its pool.
+     * 
+     * @return the connection
+     * @throws SQLException when a connection could not be established
+     * @since 1.3
+     */
+    protected Connection getReadConnection() throws SQLException {
+        return getConnection();
+    }
+
+    /**
+     * Gets the executor on which balances are written to the database.
+     * <p>
+     * By default, this is the plugin's storage executor.
+     * 
+     * @return the write executor
+     * @since 1.3
+     */
+    protected Executor getWriteExecutor() {
+        return plugin.getStorageExecutor();
+    }
+
+    @Override
+    public synchronized void startRefreshing() {
+        if (!isMultiServer() || refreshTask != null) {
+            return;
+        }
+
+        long interval = Math.max(1, getRefreshInterval());
+        refreshTask = plugin.getServer().getScheduler().runTaskTimerAsynchronously(plugin, () -> {
+            // Skip this interval if the last refresh is still running
+            if (refreshing.compareAndSet(false, true)) {
+                CompletableFuture.runAsync(this::refresh, plugin.getStorageExecutor()).whenComplete((v, ex) -> {
+                    refreshing.set(false);
+                    if (ex != null) {
+                        plugin.getLogger().warning("Failed to read the changes of other servers: " + ex.getCause().getMessage());
+                    }
+                });
+            }
+        }, interval, interval);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (refreshTask != null) {
+            refreshTask.cancel();
+            refreshTask = null;
+        }
+        if (pool != null) {
+            pool.close();
+            pool = null;
+        }
+    }
 
     @Override
     public CompletableFuture<Void> storeAccount(BankAccount account) {
+        return storeAccounts(Collections.singletonList(account));
+    }
+
+    @Override
+    public CompletableFuture<Void> storeAccounts(Collection<BankAccount> accounts) {
+        if (isMultiServer()) {
+            return CompletableFuture.runAsync(() -> storeVersioned(accounts), getWriteExecutor());
+        }
+
         return CompletableFuture.runAsync(() -> {
-            for(World world : plugin.getServer().getWorlds()) {
-                try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(QUERY_STORE)) {
-                    stmt.setString(1, account.getOwner().getUniqueId().toString());
-                    stmt.setString(2, world.getName());
-                    stmt.setDouble(3, account.getBalance(world));
+            // Only the balances that have changed since the last write are stored
+            Map<BankAccount, Map<String, Double>> changes = new HashMap<>();
+            for (BankAccount account : accounts) {
+                Map<String, Double> accountChanges = account.pollChanges();
+                if (!accountChanges.isEmpty()) {
+                    changes.put(account, accountChanges);
+                }
+            }
+
+            if (changes.isEmpty()) {
+                return;
+            }
+
+            Map<UUID, Map<String, Double>> balances = new HashMap<>();
+            changes.forEach((account, accountChanges) -> balances.put(account.getOwner().getUniqueId(), accountChanges));
+
+            try {
+                upsertBalances(balances);
+            } catch (SQLException ex) {
+                changes.forEach((account, accountChanges) -> account.restoreChanges(accountChanges.keySet()));
+                throw new CompletionException(ex);
+            } catch (RuntimeException ex) {
+                // The polled changes must never be lost, whatever has failed
+                changes.forEach((account, accountChanges) -> account.restoreChanges(accountChanges.keySet()));
+                throw ex;
+            }
+        }, getWriteExecutor());
+    }
+
+    /**
+     * Stores the changed balances of the given accounts with versioned writes.
+     * <p>
+     * If another server has changed a balance in the meantime, the balance in the database is
+     * changed by the same amount as the balance in memory instead. The balance in memory is
+     * then updated to include the other server's change.
+     * 
+     * @param accounts the accounts to store
+     */
+    private void storeVersioned(Collection<BankAccount> accounts) {
+        // Changes are polled while holding the lock, so no refresh can change the accounts in between
+        synchronized (syncLock) {
+            List<VersionedWrite> writes = new ArrayList<>();
+            Map<BankAccount, Map<String, Double>> changes = new HashMap<>();
+
+            try {
+                ensureInitialized();
+
+                for (BankAccount account : accounts) {
+                    // Polling an account that is not in memory would load it, which needs the sync lock
+                    if (!account.hasChanges()) {
+                        continue;
+                    }
+                    Map<String, Double> accountChanges = account.pollChanges();
+                    if (accountChanges.isEmpty()) {
+                        continue;
+                    }
+                    changes.put(account, accountChanges);
+
+                    Map<String, StoredRow> rows = storedRows.get(account.getOwner().getUniqueId());
+                    for (Map.Entry<String, Double> entry : accountChanges.entrySet()) {
+                        writes.add(new VersionedWrite(account, entry.getKey(), storedScale.toMinorUnits(entry.getValue()),
+                                rows == null ? null : rows.get(entry.getKey())));
+                    }
+                }
+
+                if (writes.isEmpty()) {
+                    return;
+                }
+
+                try (Connection conn = getConnection()) {
+                    // New worlds are added outside of the transaction, so they are never rolled back
+                    for (VersionedWrite write : writes) {
+                        getWorldId(conn, write.worldName);
+                    }
+
+                    conn.setAutoCommit(false);
+                    try {
+                        for (VersionedWrite write : writes) {
+                            writeVersioned(conn, write);
+                        }
+                        conn.commit();
+                    } catch (SQLException | RuntimeException ex) {
+                        conn.rollback();
+                        throw ex;
+                    } finally {
+                        conn.setAutoCommit(true);
+                    }
+                }
+            } catch (SQLException ex) {
+                changes.forEach((account, accountChanges) -> account.restoreChanges(accountChanges.keySet()));
+                throw new CompletionException(ex);
+            } catch (RuntimeException ex) {
+                changes.forEach((account, accountChanges) -> account.restoreChanges(accountChanges.keySet()));
+                throw ex;
+            }
+
+            for (VersionedWrite write : writes) {
+                UUID uuid = write.account.getOwner().getUniqueId();
+                storedRows.computeIfAbsent(uuid, key -> new ConcurrentHashMap<>()).put(write.worldName, write.result);
+                if (write.result.balance != write.balance) {
+                    write.account.applyStoredChange(write.worldName, toLocalUnits(write.result.balance - write.balance));
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a single balance if its row has not been changed by another server, or adds
+     * the change to the balance of the changed row otherwise.
+     * 
+     * @param conn the connection to use, which must be in a transaction
+     * @param write the balance to write, whose result is set when it has been written
+     * @throws SQLException when the balance could not be written
+     * @throws ArithmeticException when the new balance would overflow
+     */
+    private void writeVersioned(Connection conn, VersionedWrite write) throws SQLException, ArithmeticException {
+        UUID uuid = write.account.getOwner().getUniqueId();
+        int worldId = getWorldId(conn, write.worldName);
+        StoredRow known = write.known;
+        long balance = write.balance;
+
+        // A row that has never been read has been created with the start balance
+        long base = known != null ? known.balance : storedScale.toMinorUnits(plugin.getSettings().getStartBalance());
+
+        for (int attempt = 1; ; attempt++) {
+            if (known != null) {
+                try (PreparedStatement stmt = conn.prepareStatement(String.format(QUERY_UPDATE_VERSIONED, getClockExpression()))) {
+                    stmt.setLong(1, balance);
+                    stmt.setLong(2, uuid.getMostSignificantBits());
+                    stmt.setLong(3, uuid.getLeastSignificantBits());
+                    stmt.setInt(4, worldId);
+                    stmt.setLong(5, known.version);
+                    if (stmt.executeUpdate() > 0) {
+                        write.result = new StoredRow(balance, known.version + 1);
+                        break;
+                    }
+                }
+            } else {
+                try (PreparedStatement stmt = conn.prepareStatement(String.format(QUERY_INSERT_VERSIONED, getClockExpression()))) {
+                    stmt.setLong(1, uuid.getMostSignificantBits());
+                    stmt.setLong(2, uuid.getLeastSignificantBits());
+                    stmt.setInt(3, worldId);
+                    stmt.setLong(4, balance);
                     stmt.executeUpdate();
+                    write.result = new StoredRow(balance, 1);
+                    break;
                 } catch (SQLException ex) {
-                    throw new CompletionException(ex);
+                    // Only a duplicate key means that another server has added the row in the meantime
+                    if (ex.getSQLState() == null || !ex.getSQLState().startsWith("23")) {
+                        throw ex;
+                    }
+                }
+            }
+
+            if (attempt >= MAX_WRITE_ATTEMPTS) {
+                throw new SQLException("The balance of " + uuid + " in world " + write.worldName
+                        + " has been changed by other servers too often");
+            }
+
+            // Another server has changed the row, so it is locked until the end of the transaction and
+            // this server's change is added to it
+            known = lockRow(conn, uuid, worldId);
+            if (known != null) {
+                balance = Math.addExact(known.balance, balance - base);
+                base = known.balance;
+            }
+        }
+
+        if (balance < 0) {
+            plugin.getLogger().warning("The balance of " + uuid + " in world " + write.worldName
+                    + " has become negative after adding the changes of other servers");
+        }
+    }
+
+    /**
+     * Reads a row and locks it until the end of the current transaction.
+     * 
+     * @param conn the connection to use, which must be in a transaction
+     * @param uuid the account owner's UUID
+     * @param worldId the world's number
+     * @return the row or {@code null} if it does not exist
+     * @throws SQLException when the row could not be read
+     */
+    private StoredRow lockRow(Connection conn, UUID uuid, int worldId) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(QUERY_LOCK_ROW)) {
+            stmt.setLong(1, uuid.getMostSignificantBits());
+            stmt.setLong(2, uuid.getLeastSignificantBits());
+            stmt.setInt(3, worldId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? new StoredRow(rs.getLong(1), rs.getLong(2)) : null;
+            }
+        }
+    }
+
+    /**
+     * Reads the rows that other servers have changed since the last refresh and adds their
+     * changes to the accounts in memory.
+     */
+    private void refresh() {
+        try {
+            ensureInitialized();
+        } catch (SQLException ex) {
+            throw new CompletionException(ex);
+        }
+
+        if (!plugin.getBankManager().isLoaded()) {
+            // The accounts created by the refresh would hide the stored ones, which are read anyway
+            return;
+        }
+
+        synchronized (syncLock) {
+            AccountTable table = plugin.getBankManager().getAccountTable();
+            if (plugin.getBankManager().isLazy()) {
+                // Accounts that have been removed from memory are read again when they are loaded
+                storedRows.keySet().removeIf(uuid -> !table.contains(uuid));
+            }
+
+            try (Connection conn = getReadConnection()) {
+                long now = getDatabaseTime(conn);
+                try (PreparedStatement stmt = conn.prepareStatement(QUERY_CHANGED_ROWS)) {
+                    stmt.setLong(1, lastRefresh - REFRESH_OVERLAP);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        while (rs.next()) {
+                            UUID uuid = new UUID(rs.getLong(1), rs.getLong(2));
+                            applyChangedRow(uuid, getWorldName(conn, rs.getInt(3)), new StoredRow(rs.getLong(4), rs.getLong(5)));
+                        }
+                    }
                 }
+                lastRefresh = now;
+            } catch (SQLException | ArithmeticException ex) {
+                throw new CompletionException(ex);
             }
-        });
+        }
+    }
+
+    /**
+     * Adds the change of a row to the account in memory, if the row is newer than
+     * the one known to this server.
+     * <p>
+     * Without lazy residency, an account that another server has created is added to
+     * memory. In lazy residency mode, it is read from the database when it is used.
+     * <p>
+     * The caller must hold the sync lock.
+     * 
+     * @param uuid the account owner's UUID
+     * @param worldName the world's name
+     * @param row the changed row
+     * @throws ArithmeticException when the new balance would overflow
+     */
+    private void applyChangedRow(UUID uuid, String worldName, StoredRow row) throws ArithmeticException {
+        Map<String, StoredRow> rows = storedRows.get(uuid);
+        StoredRow known = rows == null ? null : rows.get(worldName);
+        if (known != null && known.version >= row.version) {
+            return;
+        }
+
+        long base = known != null ? known.balance : storedScale.toMinorUnits(plugin.getSettings().getStartBalance());
+        long difference = toLocalUnits(row.balance - base);
+        BankAccount account = BankAccount.view(plugin, plugin.getServer().getOfflinePlayer(uuid));
+        boolean inMemory = account.applyStoredChange(worldName, difference);
+        if (!inMemory && !plugin.getBankManager().isLazy()) {
+            // Without lazy residency, accounts are never loaded later, so an account created by another
+            // server is added here with the start balance the difference is based on
+            new BankAccount(plugin, account.getOwner());
+            inMemory = account.applyStoredChange(worldName, difference);
+        }
+
+        if (inMemory) {
+            storedRows.computeIfAbsent(uuid, key -> new ConcurrentHashMap<>()).put(worldName, row);
+        } else {
+            storedRows.remove(uuid);
+        }
+    }
+
+    /**
+     * Converts an amount from the stored minor units to the minor units used in memory.
+     * 
+     * @param amount the amount in stored minor units
+     * @return the amount in minor units of the plugin's money scale
+     * @throws ArithmeticException when the amount cannot be converted
+     */
+    private long toLocalUnits(long amount) throws ArithmeticException {
+        MoneyScale scale = plugin.getMoneyScale();
+        if (scale.getDecimalPlaces() == storedScale.getDecimalPlaces()) {
+            return amount;
+        }
+        return scale.toMinorUnits(storedScale.fromMinorUnits(amount));
     }
 
+    /**
+     * Gets the current time of the database server.
+     * 
+     * @param conn the connection to use
+     * @return the time in milliseconds
+     * @throws SQLException when the time could not be read
+     */
+    private long getDatabaseTime(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("SELECT " + getClockExpression())) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The position is the UUID and world number of the last row that has been read, so an
+     * account with more balances than fit into one batch is continued in the next batch.
+     */
     @Override
-    public CompletableFuture<Collection<BankAccount>> getAccounts() {
+    public CompletableFuture<BalanceBatch> readBalances(String position, int limit) {
         return CompletableFuture.supplyAsync(() -> {
             try {
-                initDatabase();
-            } catch (SQLException ex) {
+                ensureInitialized();
+
+                String query = String.format(position == null ? QUERY_READ_FIRST : QUERY_READ_NEXT, limit);
+                try (Connection conn = getReadConnection(); PreparedStatement stmt = conn.prepareStatement(query)) {
+                    if (position != null) {
+                        // Positions without a world number are continued after all rows of the account
+                        int separator = position.indexOf('/');
+                        UUID after = UUID.fromString(separator < 0 ? position : position.substring(0, separator));
+                        int afterWorld = separator < 0 ? Integer.MAX_VALUE : Integer.parseInt(position.substring(separator + 1));
+                        stmt.setLong(1, after.getMostSignificantBits());
+                        stmt.setLong(2, after.getMostSignificantBits());
+                        stmt.setLong(3, after.getLeastSignificantBits());
+                        stmt.setLong(4, after.getLeastSignificantBits());
+                        stmt.setInt(5, afterWorld);
+                    }
+
+                    List<UUID> uuids = new ArrayList<>();
+                    List<Integer> worldIds = new ArrayList<>();
+                    List<Long> values = new ArrayList<>();
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        while (rs.next()) {
+                            uuids.add(new UUID(rs.getLong(1), rs.getLong(2)));
+                            worldIds.add(rs.getInt(3));
+                            values.add(rs.getLong(4));
+                        }
+                    }
+
+                    int rows = uuids.size();
+                    if (rows == limit && !uuids.get(0).equals(uuids.get(rows - 1))) {
+                        // The rows of the last account might continue after the limit, so it is read with the next batch
+                        UUID splitUuid = uuids.get(rows - 1);
+                        while (uuids.get(rows - 1).equals(splitUuid)) {
+                            rows--;
+                        }
+                    }
+
+                    Map<UUID, Map<String, Double>> balances = new LinkedHashMap<>();
+                    for (int i = 0; i < rows; i++) {
+                        balances.computeIfAbsent(uuids.get(i), key -> new HashMap<>())
+                            .put(getWorldName(conn, worldIds.get(i)), storedScale.fromMinorUnits(values.get(i)));
+                    }
+
+                    if (uuids.size() < limit) {
+                        return new BalanceBatch(balances, null);
+                    }
+                    return new BalanceBatch(balances, uuids.get(rows - 1) + "/" + worldIds.get(rows - 1));
+                }
+            } catch (SQLException | IllegalArgumentException ex) {
                 throw new CompletionException(ex);
             }
+        }, plugin.getStorageExecutor());
+    }
 
-            Map<UUID, Map<String, Double>> values = new HashMap<>();
+    @Override
+    public CompletableFuture<Void> writeBalances(Map<UUID, Map<String, Double>> balances) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                upsertBalances(balances);
+            } catch (SQLException | ArithmeticException ex) {
+                throw new CompletionException(ex);
+            }
+        }, getWriteExecutor());
+    }
+
+    /**
+     * Inserts or updates the given balances in a single batch and transaction.
+     * 
+     * @param balances the balances mapped by the account owner's UUID and world name
+     * @throws SQLException when the balances could not be stored
+     * @throws ArithmeticException when a balance cannot be stored in minor units
+     */
+    private void upsertBalances(Map<UUID, Map<String, Double>> balances) throws SQLException, ArithmeticException {
+        ensureInitialized();
+
+        try (Connection conn = getConnection()) {
+            // New worlds are added outside of the transaction, so they are never rolled back
+            for (Map<String, Double> accountBalances : balances.values()) {
+                for (String worldName : accountBalances.keySet()) {
+                    getWorldId(conn, worldName);
+                }
+            }
+
+            conn.setAutoCommit(false);
 
-            try (Connection conn = getConnection(); Statement stmt = conn.createStatement()) {
-                ResultSet rs = stmt.executeQuery(QUERY_LOAD);
-                while (rs.next()) {
-                    UUID uuid = UUID.fromString(rs.getString("uuid"));
-                    if (!values.containsKey(uuid)) {
-                        values.put(uuid, new HashMap<>());
+            try (PreparedStatement stmt = conn.prepareStatement(getUpsertQuery())) {
+                for (Map.Entry<UUID, Map<String, Double>> accountBalances : balances.entrySet()) {
+                    UUID uuid = accountBalances.getKey();
+                    for (Map.Entry<String, Double> entry : accountBalances.getValue().entrySet()) {
+                        stmt.setLong(1, uuid.getMostSignificantBits());
+                        stmt.setLong(2, uuid.getLeastSignificantBits());
+                        stmt.setInt(3, getWorldId(conn, entry.getKey()));
+                        stmt.setLong(4, storedScale.toMinorUnits(entry.getValue()));
+                        stmt.addBatch();
                     }
-                    values.get(uuid).put(rs.getString("world_name"), rs.getDouble("balance"));
                 }
+                stmt.executeBatch();
+                conn.commit();
+            } catch (SQLException | ArithmeticException ex) {
+                conn.rollback();
+                throw ex;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    @Override
+    public CompletableFuture<Collection<BankAccount>> getAccounts() {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                ensureInitialized();
+            } catch (SQLException ex) {
+                throw new CompletionException(ex);
+            }
+
+            try (Connection conn = getReadConnection();
+                    Statement stmt = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                // Stream the rows instead of buffering the whole table
+                stmt.setFetchSize(getFetchSize());
 
                 List<BankAccount> result = new ArrayList<>();
-                values.forEach((uuid, balances) -> result.add(new BankAccount(plugin, plugin.getServer().getOfflinePlayer(uuid), balances)));
+                try (ResultSet rs = stmt.executeQuery(String.format(QUERY_LOAD, getLoadColumns()))) {
+                    readAccounts(conn, rs, null, result);
+                }
                 return result;
-            } catch (SQLException ex) {
+            } catch (SQLException | IllegalArgumentException ex) {
                 throw new CompletionException(ex);
             }
-        });
+        }, plugin.getStorageExecutor());
+    }
+
+    @Override
+    public CompletableFuture<Collection<BankAccount>> getAccounts(Collection<UUID> uuids) {
+        return CompletableFuture.supplyAsync(() -> {
+            List<BankAccount> result = new ArrayList<>();
+            List<UUID> remaining = new ArrayList<>(new HashSet<>(uuids));
+            Set<UUID> requested = new HashSet<>(remaining);
+
+            try {
+                ensureInitialized();
+
+                try (Connection conn = getReadConnection()) {
+                    for (int start = 0; start < remaining.size(); start += MAX_KEYS_PER_QUERY) {
+                        List<UUID> keys = remaining.subList(start, Math.min(start + MAX_KEYS_PER_QUERY, remaining.size()));
+                        String placeholders = String.join(",", Collections.nCopies(keys.size(), "?"));
+
+                        // Only the first half of the UUIDs is indexed in the query, the second half is checked when reading
+                        try (PreparedStatement stmt = conn.prepareStatement(String.format(QUERY_LOAD_KEYS, getLoadColumns(), placeholders))) {
+                            for (int i = 0; i < keys.size(); i++) {
+                                stmt.setLong(i + 1, keys.get(i).getMostSignificantBits());
+                            }
+                            try (ResultSet rs = stmt.executeQuery()) {
+                                readAccounts(conn, rs, requested, result);
+                            }
+                        }
+                    }
+                }
+                return result;
+            } catch (SQLException | IllegalArgumentException ex) {
+                throw new CompletionException(ex);
+            }
+        }, plugin.getStorageExecutor());
+    }
+
+    @Override
+    public CompletableFuture<Optional<BankAccount>> getAccount(UUID uuid) {
+        return getAccounts(Collections.singleton(uuid))
+            .thenApply(accounts -> accounts.stream().findAny());
+    }
+
+    /**
+     * Gets the columns that are read when loading accounts.
+     * 
+     * @return the comma-separated column names
+     */
+    private String getLoadColumns() {
+        return isMultiServer() ? "uuid_msb, uuid_lsb, world_id, balance, version" : "uuid_msb, uuid_lsb, world_id, balance";
+    }
+
+    /**
+     * Creates bank accounts from the rows of the given result set, which have to be ordered by UUID.
+     * 
+     * @param conn the connection used to look up unknown world numbers
+     * @param rs the result set containing the two halves of the UUID, the world number, the
+     *           balance and in multi-server mode the version in this order
+     * @param requested the UUIDs of the accounts to create or {@code null} to create all accounts
+     * @param result the list to add the accounts to
+     * @throws SQLException when the rows could not be read
+     */
+    private void readAccounts(Connection conn, ResultSet rs, Set<UUID> requested, List<BankAccount> result)
+            throws SQLException {
+        UUID lastUuid = null;
+        Map<String, Double> balances = null;
+        Map<String, StoredRow> rows = null;
+        boolean versioned = isMultiServer();
+
+        while (rs.next()) {
+            // Rows are ordered by UUID, so an account is complete once the UUID changes
+            long mostSig = rs.getLong(1);
+            long leastSig = rs.getLong(2);
+            if (lastUuid == null || lastUuid.getMostSignificantBits() != mostSig
+                    || lastUuid.getLeastSignificantBits() != leastSig) {
+                addAccount(lastUuid, balances, rows, requested, result);
+                lastUuid = new UUID(mostSig, leastSig);
+                balances = new HashMap<>();
+                rows = versioned ? new HashMap<>() : null;
+            }
+            String worldName = getWorldName(conn, rs.getInt(3));
+            balances.put(worldName, storedScale.fromMinorUnits(rs.getLong(4)));
+            if (versioned) {
+                rows.put(worldName, new StoredRow(rs.getLong(4), rs.getLong(5)));
+            }
+        }
+
+        addAccount(lastUuid, balances, rows, requested, result);
+    }
+
+    /**
+     * Creates a bank account with the given balances, if it has been requested.
+     * 
+     * @param uuid the account owner's UUID, may be {@code null}
+     * @param balances the balances mapped by world name
+     * @param rows the read rows mapped by world name in multi-server mode, otherwise {@code null}
+     * @param requested the UUIDs of the accounts to create or {@code null} to create all accounts
+     * @param result the list to add the account to
+     */
+    private void addAccount(UUID uuid, Map<String, Double> balances, Map<String, StoredRow> rows,
+            Set<UUID> requested, List<BankAccount> result) {
+        if (uuid == null || (requested != null && !requested.contains(uuid))) {
+            return;
+        }
+
+        if (rows == null) {
+            result.add(new BankAccount(plugin, plugin.getServer().getOfflinePlayer(uuid), balances));
+            return;
+        }
+
+        synchronized (syncLock) {
+            // An account that is already in memory keeps the rows its balances are based on
+            if (!plugin.getBankManager().getAccountTable().contains(uuid)) {
+                storedRows.put(uuid, new ConcurrentHashMap<>(rows));
+            }
+            result.add(new BankAccount(plugin, plugin.getServer().getOfflinePlayer(uuid), balances));
+        }
+    }
+
+    /**
+     * Gets the number of the given world in the database, adding the world if it is unknown.
+     * 
+     * @param conn the connection to use
+     * @param worldName the world's name
+     * @return the world's number
+     * @throws SQLException when the world could not be added
+     */
+    private int getWorldId(Connection conn, String worldName) throws SQLException {
+        Integer id = worldIds.get(worldName);
+        if (id != null) {
+            return id;
+        }
+
+        synchronized (worldIds) {
+            loadWorlds(conn);
+            if (!worldIds.containsKey(worldName)) {
+                try (PreparedStatement stmt = conn.prepareStatement(QUERY_INSERT_WORLD)) {
+                    stmt.setString(1, worldName);
+                    stmt.executeUpdate();
+                } catch (SQLException ex) {
+                    // Another server might have added the world at the same time
+                    loadWorlds(conn);
+                    if (!worldIds.containsKey(worldName)) {
+                        throw ex;
+                    }
+                }
+                loadWorlds(conn);
+            }
+            return worldIds.get(worldName);
+        }
+    }
+
+    /**
+     * Gets the name of the world with the given number in the database.
+     * 
+     * @param conn the connection to use
+     * @param worldId the world's number
+     * @return the world's name
+     * @throws SQLException when the world is unknown
+     */
+    private String getWorldName(Connection conn, int worldId) throws SQLException {
+        String name = worldNames.get(worldId);
+        if (name == null) {
+            // The world might have been added by another server
+            synchronized (worldIds) {
+                loadWorlds(conn);
+            }
+            name = worldNames.get(worldId);
+            if (name == null) {
+                throw new SQLException("Unknown world number: " + worldId);
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Reads all worlds from the lookup table.
+     * 
+     * @param conn the connection to use
+     * @throws SQLException when the worlds could not be read
+     */
+    private void loadWorlds(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(QUERY_LOAD_WORLDS)) {
+            while (rs.next()) {
+                worldIds.put(rs.getString(2), rs.getInt(1));
+                worldNames.put(rs.getInt(1), rs.getString(2));
+            }
+        }
+    }
+
+    /**
+     * Initializes the database if that has not been done yet.
+     * 
+     * @throws SQLException when the database fails to initialize
+     */
+    private synchronized void ensureInitialized() throws SQLException {
+        if (!initialized) {
+            initDatabase();
+            initialized = true;
+        }
     }
     
     /**
      * Initalizes the SQL database.
+     * <p>
+     * Since 1.3, this creates the tables of the current schema version and converts
+     * the data of older schema versions.
      * 
      * @throws SQLException when the database fails to initialize
      * @since 1.0
      */
     protected void initDatabase() throws SQLException {
         try (Connection conn = getConnection(); Statement stmt = conn.createStatement()) {
-            // ? What is the maximum length of a world name? Does 255 suffice?
-            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS justmoney ("
-                + "uuid VARCHAR(36) NOT NULL,"
-                + "world_name VARCHAR(255) NOT NULL,"
-                + "balance DOUBLE NOT NULL,"
-                + "PRIMARY KEY (uuid, world_name))");
-        } catch (SQLException ex) {
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS justmoney_meta ("
+                + "meta_key VARCHAR(64) NOT NULL PRIMARY KEY,"
+                + "meta_value VARCHAR(255) NOT NULL)");
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS justmoney_worlds ("
+                + "id INT NOT NULL PRIMARY KEY,"
+                + "name VARCHAR(255) NOT NULL UNIQUE)");
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS justmoney_balances ("
+                + "uuid_msb BIGINT NOT NULL,"
+                + "uuid_lsb BIGINT NOT NULL,"
+                + "world_id INT NOT NULL,"
+                + "balance BIGINT NOT NULL,"
+                + "PRIMARY KEY (uuid_msb, uuid_lsb, world_id))");
+
+            if (isMultiServer()) {
+                addVersionColumns(conn);
+                lastRefresh = getDatabaseTime(conn);
+            }
+
+            // New databases store balances with the configured decimal places
+            String decimalPlaces = getMeta(conn, "decimal_places");
+            if (decimalPlaces == null) {
+                decimalPlaces = String.valueOf(plugin.getMoneyScale().getDecimalPlaces());
+                setMeta(conn, "decimal_places", decimalPlaces);
+            }
+            storedScale = new MoneyScale(Integer.parseInt(decimalPlaces));
+
+            String version = getMeta(conn, "schema_version");
+            if (version == null || Integer.parseInt(version) < SCHEMA_VERSION) {
+                if (tableExists(conn, "justmoney")) {
+                    migrateFromVersion1(conn);
+                }
+                setMeta(conn, "schema_version", String.valueOf(SCHEMA_VERSION));
+            }
+
+            synchronized (worldIds) {
+                loadWorlds(conn);
+            }
+        } catch (SQLException | NumberFormatException ex) {
             throw new SQLException("Failed to initialize database", ex);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Copies the balances from the table of schema version 1 in batches and renames the
+     * old table afterwards, so it is kept as a backup.
+     * <p>
+     * The UUID and world name of the last copied row are stored with each batch, so an
+     * interrupted migration is continued from there, even within the balances of one player.
+     * 
+     * @param conn the connection to use
+     * @throws SQLException when the balances could not be copied
+     */
+    private void migrateFromVersion1(Connection conn) throws SQLException {
+        String lastUuid = getMeta(conn, "migration_last_uuid");
+        String lastWorld = getMeta(conn, "migration_last_world");
+        plugin.getLogger().info(lastUuid == null ? "Converting the database to schema version " + SCHEMA_VERSION
+                : "Continuing the conversion of the database after player " + lastUuid);
+
+        String query = String.format(QUERY_MIGRATE_LOAD, MIGRATION_BATCH_SIZE);
+        long copied = 0;
+        boolean complete = false;
+
+        while (!complete) {
+            List<String[]> rows = new ArrayList<>();
+            try (PreparedStatement stmt = conn.prepareStatement(query)) {
+                stmt.setString(1, lastUuid == null ? "" : lastUuid);
+                // Without a world name, the conversion has stopped after all rows of the player
+                stmt.setString(2, lastWorld == null ? "" : lastUuid);
+                stmt.setString(3, lastWorld == null ? "" : lastWorld);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        rows.add(new String[] { rs.getString(1), rs.getString(2), String.valueOf(rs.getDouble(3)) });
+                    }
+                }
+            }
+
+            complete = rows.size() < MIGRATION_BATCH_SIZE;
+            if (rows.isEmpty()) {
+                break;
+            }
+
+            for (String[] row : rows) {
+                getWorldId(conn, row[1]);
+            }
+
+            conn.setAutoCommit(false);
+            try (PreparedStatement stmt = conn.prepareStatement(getUpsertQuery())) {
+                for (String[] row : rows) {
+                    UUID uuid = UUID.fromString(row[0]);
+                    stmt.setLong(1, uuid.getMostSignificantBits());
+                    stmt.setLong(2, uuid.getLeastSignificantBits());
+                    stmt.setInt(3, getWorldId(conn, row[1]));
+                    stmt.setLong(4, storedScale.toMinorUnits(Double.parseDouble(row[2])));
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+
+                lastUuid = rows.get(rows.size() - 1)[0];
+                lastWorld = rows.get(rows.size() - 1)[1];
+                setMeta(conn, "migration_last_uuid", lastUuid);
+                setMeta(conn, "migration_last_world", lastWorld);
+                conn.commit();
+            } catch (SQLException | IllegalArgumentException | ArithmeticException ex) {
+                conn.rollback();
+                throw new SQLException("Failed to convert the balances after player " + lastUuid, ex);
+            } finally {
+                conn.setAutoCommit(true);
+            }
+
+            copied += rows.size();
+            plugin.getLogger().info("Converted " + copied + " balances");
+        }
+
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("ALTER TABLE justmoney RENAME TO justmoney_v1");
+        }
+        plugin.getLogger().info("The database has been converted, the old table has been renamed to \"justmoney_v1\"");
+    }
+
+    /**
+     * Adds the columns that are needed for multi-server mode, unless they already exist.
+     * 
+     * @param conn the connection to use
+     * @throws SQLException when the columns could not be added
+     */
+    private void addVersionColumns(Connection conn) throws SQLException {
+        if (columnExists(conn, "justmoney_balances", "version")) {
+            return;
+        }
+
+        plugin.getLogger().info("Adding the columns for multi-server mode to the database");
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("ALTER TABLE justmoney_balances "
+                + "ADD COLUMN version BIGINT NOT NULL DEFAULT 0, "
+                + "ADD COLUMN modified BIGINT NOT NULL DEFAULT 0, "
+                + "ADD INDEX justmoney_balances_modified (modified)");
+        } catch (SQLException ex) {
+            // Another server might have added the columns at the same time
+            if (!columnExists(conn, "justmoney_balances", "version")) {
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Checks whether the given table of the connection's database has a column with the given name.
+     * 
+     * @param conn the connection to use
+     * @param table the table's name
+     * @param column the column's name
+     * @return whether the column exists
+     * @throws SQLException when the database could not be queried
+     */
+    private boolean columnExists(Connection conn, String table, String column) throws SQLException {
+        // Without a catalog, tables of other databases on the same server would be found as well
+        try (ResultSet rs = conn.getMetaData().getColumns(conn.getCatalog(), null, table, column)) {
+            while (rs.next()) {
+                if (column.equalsIgnoreCase(rs.getString("COLUMN_NAME"))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Checks whether the table with the given name exists in the connection's database.
+     * 
+     * @param conn the connection to use
+     * @param name the table's name
+     * @return whether the table exists
+     * @throws SQLException when the database could not be queried
+     */
+    private boolean tableExists(Connection conn, String name) throws SQLException {
+        try (ResultSet rs = conn.getMetaData().getTables(conn.getCatalog(), null, name, null)) {
+            while (rs.next()) {
+                if (name.equalsIgnoreCase(rs.getString("TABLE_NAME"))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Gets a value from the meta table.
+     * 
+     * @param conn the connection to use
+     * @param key the value's key
+     * @return the value or {@code null} if none is stored
+     * @throws SQLException when the database could not be queried
+     */
+    private String getMeta(Connection conn, String key) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(QUERY_GET_META)) {
+            stmt.setString(1, key);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getString(1) : null;
+            }
+        }
+    }
+
+    /**
+     * Stores a value in the meta table.
+     * 
+     * @param conn the connection to use
+     * @param key the value's key
+     * @param value the value
+     * @throws SQLException when the value could not be stored
+     */
+    private void setMeta(Connection conn, String key, String value) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(QUERY_UPDATE_META)) {
+            stmt.setString(1, value);
+            stmt.setString(2, key);
+            if (stmt.executeUpdate() > 0) {
+                return;
+            }
+        }
+
+        try (PreparedStatement stmt = conn.prepareStatement(QUERY_INSERT_META)) {
+            stmt.setString(1, value);
+            stmt.setString(2, key);
+            stmt.executeUpdate();
+        }
+    }
+
+    /**
+     * The balance and version of a row as last read or written by this server.
+     */
+    private static final class StoredRow {
+        private final long balance;
+        private final long version;
+
+        StoredRow(long balance, long version) {
+            this.balance = balance;
+            this.version = version;
+        }
+    }
+
+    /**
+     * A balance that is written in multi-server mode.
+     */
+    private static final class VersionedWrite {
+        private final BankAccount account;
+        private final String worldName;
+        private final long balance;
+        private final StoredRow known;
+        private StoredRow result;
+
+        VersionedWrite(BankAccount account, String worldName, long balance, StoredRow known) {
+            this.account = account;
+            this.worldName = worldName;
+            this.balance = balance;
+            this.known = known;
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package de.epiceric.justmoney.storage;
+
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import org.bukkit.Bukkit;
+import org.bukkit.configuration.ConfigurationSection;
+
+import de.epiceric.justmoney.JustMoney;
+
+/**
+ * The executor that runs all blocking file and database access of the storages.
+ * <p>
+ * It has a fixed amount of threads and a bounded queue, so storage I/O does not
+ * occupy thread pools shared with other plugins. When the queue is full, the
+ * submitting thread is slowed down instead of dropping the task: depending on
+ * the configured overflow policy, it either waits for a free slot or runs the
+ * task itself. The server thread never runs storage tasks itself: it waits at
+ * most for the configured time and then hands the task to the next storage
+ * thread that becomes free. Tasks submitted by the storage threads themselves
+ * never wait, so they cannot block each other.
+ * 
+ * @since 1.3
+ */
+public class StorageExecutor extends ThreadPoolExecutor {
+    /**
+     * Minimum time in milliseconds between two warnings about a full queue.
+     */
+    private static final long WARNING_INTERVAL = 60000;
+
+    private final JustMoney plugin;
+    private final boolean callerRuns;
+    private final long maxWait;
+
+    private final AtomicLong saturations = new AtomicLong();
+    private final AtomicLong callerRunCount = new AtomicLong();
+    private final AtomicLong lastWarning = new AtomicLong();
+    private final AtomicLong lastHandOffWarning = new AtomicLong();
+
+    // Tasks of the server thread that did not fit into the queue in time, run by the next free storage thread
+    private final Queue<Runnable> handedOff = new ConcurrentLinkedQueue<>();
+
+    public StorageExecutor(JustMoney plugin) {
+        super(getThreads(plugin), getThreads(plugin), 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(getQueueSize(plugin)), createThreadFactory());
+        this.plugin = plugin;
+
+        ConfigurationSection config = plugin.getConfig().getConfigurationSection("storage-executor");
+        String overflow = config == null ? "block" : config.getString("overflow", "block");
+        this.maxWait = config == null ? 1000 : Math.max(0, config.getLong("max-wait", 1000));
+
+        if ("caller-runs".equalsIgnoreCase(overflow)) {
+            this.callerRuns = true;
+        } else {
+            if (!"block".equalsIgnoreCase(overflow)) {
+                plugin.getLogger().warning("Invalid storage executor overflow policy: " + overflow);
+                plugin.getLogger().warning("Using \"block\" as fallback");
+            }
+            this.callerRuns = false;
+        }
+
+        setRejectedExecutionHandler(new OverflowHandler());
+        prestartAllCoreThreads();
+    }
+
+    private static int getThreads(JustMoney plugin) {
+        ConfigurationSection config = plugin.getConfig().getConfigurationSection("storage-executor");
+        return config == null ? 2 : Math.max(1, config.getInt("threads", 2));
+    }
+
+    private static int getQueueSize(JustMoney plugin) {
+        ConfigurationSection config = plugin.getConfig().getConfigurationSection("storage-executor");
+        return config == null ? 1000 : Math.max(1, config.getInt("queue-size", 1000));
+    }
+
+    private static ThreadFactory createThreadFactory() {
+        AtomicInteger threadCount = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new StorageThread(runnable, "JustMoney Storage Thread #" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Marks the threads of this executor.
+     */
+    private static class StorageThread extends Thread {
+        StorageThread(Runnable runnable, String name) {
+            super(runnable, name);
+        }
+    }
+
+    /**
+     * Handles tasks that do not fit into the queue according to the overflow policy.
+     */
+    private class OverflowHandler implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            if (isShutdown()) {
+                // Late tasks, e.g. the final flush, still have to run
+                task.run();
+                return;
+            }
+
+            onSaturated();
+
+            if (Bukkit.isPrimaryThread()) {
+                // Storage I/O must never stall the server tick, so the server thread neither runs the task
+                // nor waits longer than allowed
+                try {
+                    if (getQueue().offer(task, callerRuns ? 0 : maxWait, TimeUnit.MILLISECONDS)) {
+                        runIfShutdown(task);
+                        return;
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                handOff(task);
+                return;
+            }
+
+            if (!callerRuns && !(Thread.currentThread() instanceof StorageThread)) {
+                try {
+                    if (getQueue().offer(task, maxWait, TimeUnit.MILLISECONDS)) {
+                        runIfShutdown(task);
+                        return;
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            // Slow down the submitting thread instead of dropping the task
+            callerRunCount.incrementAndGet();
+            task.run();
+        }
+
+        /**
+         * Hands the given task to the next storage thread that completes a task.
+         */
+        private void handOff(Runnable task) {
+            handedOff.add(task);
+            warn(lastHandOffWarning, "The server thread could not queue a storage task in time, it is run as soon "
+                    + "as a storage thread is free");
+
+            // The queue might have been drained meanwhile, so no completing task would pick it up. If it is
+            // still full, one of the queued tasks runs it when it completes.
+            getQueue().offer(StorageExecutor.this::runHandedOff);
+
+            if (isShutdown() && handedOff.remove(task)) {
+                task.run();
+            }
+        }
+
+        /**
+         * Runs the given queued task if the executor has been shut down meanwhile, in which case it may never run.
+         */
+        private void runIfShutdown(Runnable task) {
+            if (isShutdown() && getQueue().remove(task)) {
+                task.run();
+            }
+        }
+    }
+
+    @Override
+    protected void afterExecute(Runnable task, Throwable thrown) {
+        super.afterExecute(task, thrown);
+        runHandedOff();
+    }
+
+    /**
+     * Runs the tasks that the server thread has handed off because the queue was full.
+     */
+    private void runHandedOff() {
+        Runnable task;
+        while ((task = handedOff.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                plugin.getLogger().log(Level.SEVERE, "A storage task has failed", ex);
+            }
+        }
+    }
+
+    /**
+     * Records that the queue was full and warns about it from time to time.
+     */
+    private void onSaturated() {
+        saturations.incrementAndGet();
+        warn(lastWarning, "The storage cannot keep up, its queue of " + getQueueCapacity()
+                + " tasks is full. Consider raising \"storage-executor.threads\" or \"storage-executor.queue-size\".");
+    }
+
+    /**
+     * Logs the given warning, unless it has been logged less than a minute ago.
+     * 
+     * @param lastLogged the time the warning has last been logged
+     * @param message the warning
+     */
+    private void warn(AtomicLong lastLogged, String message) {
+        long now = System.currentTimeMillis();
+        long last = lastLogged.get();
+        if (now - last >= WARNING_INTERVAL && lastLogged.compareAndSet(last, now)) {
+            plugin.getLogger().warning(message);
+        }
+    }
+
+    /**
+     * Gets the amount of tasks waiting to be run.
+     * 
+     * @return the queue depth
+     * @since 1.3
+     */
+    public int getQueueDepth() {
+        return getQueue().size();
+    }
+
+    /**
+     * Gets the maximum amount of tasks that can wait to be run.
+     * 
+     * @return the queue capacity
+     * @since 1.3
+     */
+    public int getQueueCapacity() {
+        return getQueue().size() + getQueue().remainingCapacity();
+    }
+
+    /**
+     * Gets the amount of threads that are currently running a task.
+     * 
+     * @return the amount of active threads
+     * @since 1.3
+     */
+    public int getActiveThreads() {
+        return getActiveCount();
+    }
+
+    /**
+     * Gets the amount of tasks that have been run by the storage threads.
+     * 
+     * @return the amount of completed tasks
+     * @since 1.3
+     */
+    public long getCompletedTasks() {
+        return getCompletedTaskCount();
+    }
+
+    /**
+     * Gets how often a task has been submitted while the queue was full.
+     * 
+     * @return the amount of saturations
+     * @since 1.3
+     */
+    public long getSaturations() {
+        return saturations.get();
+    }
+
+    /**
+     * Gets the amount of tasks that have been run by the submitting thread because the queue was full.
+     * 
+     * @return the amount of caller runs
+     * @since 1.3
+     */
+    public long getCallerRuns() {
+        return callerRunCount.get();
+    }
+
+    /**
+     * Stops accepting new tasks and waits for the queued tasks to complete.
+     * <p>
+     * Tasks submitted afterwards are run by the submitting thread.
+     * 
+     * @param timeout the maximum time to wait in milliseconds
+     * @since 1.3
+     */
+    public void shutdown(long timeout) {
+        shutdown();
+        try {
+            if (!awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+                plugin.getLogger().severe("Storage tasks did not complete in time, " + getQueue().size() + " tasks are dropped");
+                shutdownNow();
+            }
+        } catch (InterruptedException ex) {
+            plugin.getLogger().log(Level.SEVERE, "Interrupted while waiting for storage tasks to complete", ex);
+            shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        // Tasks handed off after the last storage thread has stopped are still run
+        runHandedOff();
+
+        plugin.getLogger().info(String.format("Storage executor: %d tasks completed, %d saturations, %d caller runs",
+                getCompletedTasks(), getSaturations(), getCallerRuns()));
+    }
+}
@@ -0,0 +1,402 @@
+package de.epiceric.justmoney.storage;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+import org.bukkit.Bukkit;
+import org.bukkit.scheduler.BukkitTask;
+
+import de.epiceric.justmoney.JustMoney;
+import de.epiceric.justmoney.model.BankAccount;
+
+/**
+ * Collects changed bank accounts and writes them to the bank storage in batches.
+ * <p>
+ * An account that is changed multiple times between two flushes is only written
+ * once with its latest state, so the storage load depends on the amount of
+ * distinct accounts that changed instead of the amount of transactions.
+ * <p>
+ * How soon a change is written depends on the configured {@link Durability}.
+ * Changes are always written by the storage threads, never by the server thread.
+ * If writing fails, the changes stay in memory and are retried with a later
+ * flush, they are never rolled back. After a failure, automatic flushes wait
+ * for a growing delay, so an unavailable storage is not retried constantly.
+ * 
+ * @since 1.3
+ */
+public class WriteBehindQueue {
+    /**
+     * Delay in milliseconds before automatic flushes retry after the first failure.
+     */
+    private static final long MIN_RETRY_DELAY = 1000;
+
+    /**
+     * Maximum delay in milliseconds before automatic flushes retry after repeated failures.
+     */
+    private static final long MAX_RETRY_DELAY = 60000;
+
+    /**
+     * When changes are written to the storage.
+     * 
+     * @since 1.3
+     */
+    public enum Durability {
+        /**
+         * Each change is written right away. Calls from other threads than the server
+         * thread wait until the write has been attempted, while the server thread never
+         * waits for the storage. Use {@link BankAccount#whenStored()} to wait until a
+         * change has actually been stored.
+         */
+        SYNC,
+
+        /**
+         * Changes are collected for a short time window and then written together.
+         */
+        GROUP,
+
+        /**
+         * Changes are written periodically in the background, so the latest changes
+         * are lost if the server crashes.
+         */
+        ASYNC
+    }
+
+    private final JustMoney plugin;
+    private final long flushInterval;
+    private final int maxDirtyAccounts;
+    private final Durability durability;
+    private final long groupWindow;
+
+    private final Object flushLock = new Object();
+    private final AtomicBoolean earlyFlushScheduled = new AtomicBoolean();
+    private final AtomicBoolean commitScheduled = new AtomicBoolean();
+    private final ScheduledExecutorService committer;
+
+    private Set<BankAccount> dirtyAccounts = new LinkedHashSet<>();
+    private Collection<BankAccount> flushingAccounts = Collections.emptySet();
+    private CompletableFuture<Void> nextFlush = new CompletableFuture<>();
+    private CompletableFuture<Void> currentFlush = CompletableFuture.completedFuture(null);
+    private BukkitTask flushTask;
+
+    // Guarded by the flush lock
+    private long retryDelay = 0;
+    private long retryAt = 0;
+
+    public WriteBehindQueue(JustMoney plugin) {
+        this.plugin = plugin;
+        this.flushInterval = Math.max(1, plugin.getConfig().getLong("write-behind.flush-interval"));
+        this.maxDirtyAccounts = Math.max(1, plugin.getConfig().getInt("write-behind.max-dirty-accounts"));
+        this.groupWindow = Math.max(1, plugin.getConfig().getLong("write-behind.group-window", 10));
+
+        String durability = plugin.getConfig().getString("write-behind.durability", "async");
+        Durability parsed;
+        try {
+            parsed = Durability.valueOf(durability.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException ex) {
+            plugin.getLogger().warning("Invalid durability: " + durability);
+            plugin.getLogger().warning("Using \"async\" as fallback");
+            parsed = Durability.ASYNC;
+        }
+        this.durability = parsed;
+
+        this.committer = this.durability == Durability.ASYNC ? null : Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "JustMoney Commit");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Gets when changes are written to the storage.
+     * 
+     * @return the configured durability
+     * @since 1.3
+     */
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * Starts flushing the queue periodically in the configured interval.
+     * 
+     * @since 1.3
+     */
+    public void start() {
+        if (flushTask == null) {
+            flushTask = plugin.getServer().getScheduler().runTaskTimerAsynchronously(plugin,
+                    this::flushIfDue, flushInterval, flushInterval);
+        }
+    }
+
+    /**
+     * Marks the given accounts as changed, so they are written with the next flush.
+     * <p>
+     * All given accounts are guaranteed to be written in the same flush. With the
+     * {@link Durability#SYNC} durability, this blocks until writing the accounts has
+     * been attempted, unless it is called by the server thread.
+     * 
+     * @param accounts the accounts that have changed
+     * @return a future that completes when the accounts have been stored, which may
+     *         only be after a failed write has been retried
+     * @since 1.3
+     */
+    public CompletableFuture<Void> markDirty(BankAccount... accounts) {
+        CompletableFuture<Void> future = enqueue(accounts);
+
+        switch (durability) {
+            case SYNC:
+                commitNow();
+                break;
+            case GROUP:
+                scheduleCommit(groupWindow);
+                break;
+            default:
+                break;
+        }
+        return future;
+    }
+
+    /**
+     * Adds the given accounts to the next flush.
+     * 
+     * @param accounts the accounts that have changed
+     * @return a future that completes when the accounts have been stored
+     */
+    private CompletableFuture<Void> enqueue(BankAccount... accounts) {
+        CompletableFuture<Void> future;
+        int dirtyCount;
+
+        synchronized (this) {
+            for (BankAccount account : accounts) {
+                dirtyAccounts.add(account);
+            }
+            future = nextFlush;
+            dirtyCount = dirtyAccounts.size();
+        }
+
+        if (dirtyCount >= maxDirtyAccounts && plugin.isEnabled()
+                && earlyFlushScheduled.compareAndSet(false, true)) {
+            plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
+                earlyFlushScheduled.set(false);
+                flushIfDue();
+            });
+        }
+
+        return future;
+    }
+
+    /**
+     * Writes the queued accounts on the commit thread right away and waits until it is done,
+     * unless this is called by the server thread, which must never wait for the storage.
+     */
+    private void commitNow() {
+        if (Bukkit.isPrimaryThread()) {
+            scheduleCommit(0);
+            return;
+        }
+
+        Future<?> commit;
+        try {
+            commit = committer.submit(this::flushIfDue);
+        } catch (RejectedExecutionException ex) {
+            // The queue is being drained, which writes the changes
+            return;
+        }
+
+        try {
+            // Failures have already been logged by the flush and are retried
+            commit.get();
+        } catch (ExecutionException ex) {
+            plugin.getLogger().log(Level.SEVERE, "Failed to store bank accounts", ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Schedules a flush on the commit thread after the given delay, unless one is already scheduled.
+     * 
+     * @param delay the delay in milliseconds
+     */
+    private void scheduleCommit(long delay) {
+        if (!commitScheduled.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            committer.schedule(() -> {
+                // Changes made during the flush are written with the next commit
+                commitScheduled.set(false);
+                flushIfDue();
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            // The queue is being drained, which writes the changes
+            commitScheduled.set(false);
+        }
+    }
+
+    /**
+     * Gets a future that completes when the current changes of the given account have been stored.
+     * 
+     * @param account the account
+     * @return the future, which is already completed if the account has no pending changes
+     * @since 1.3
+     */
+    public synchronized CompletableFuture<Void> whenStored(BankAccount account) {
+        if (dirtyAccounts.contains(account)) {
+            return nextFlush;
+        }
+        if (flushingAccounts.contains(account)) {
+            return currentFlush;
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Gets the amount of accounts waiting to be written.
+     * 
+     * @return the amount of dirty accounts
+     * @since 1.3
+     */
+    public synchronized int getDirtyCount() {
+        return dirtyAccounts.size();
+    }
+
+    /**
+     * Gets whether the given account is waiting to be written or is currently being written.
+     * 
+     * @param account the account
+     * @return whether the account has changes that are not stored yet
+     * @since 1.3
+     */
+    public synchronized boolean isPending(BankAccount account) {
+        return dirtyAccounts.contains(account) || flushingAccounts.contains(account);
+    }
+
+    /**
+     * Flushes the queue, unless a failed flush is waiting for its retry delay.
+     * Changes made in the meantime are written with the retry.
+     */
+    private void flushIfDue() {
+        synchronized (flushLock) {
+            if (System.currentTimeMillis() >= retryAt) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Writes all accounts that are currently marked as changed to the storage.
+     * <p>
+     * This blocks until the accounts have been stored. Only one flush runs at a time,
+     * so an older state of an account can never overwrite a newer one. If the flush
+     * fails, the accounts are queued again, and automatic flushes wait before they
+     * retry.
+     * 
+     * @return whether the flush succeeded
+     * @since 1.3
+     */
+    public boolean flush() {
+        synchronized (flushLock) {
+            Collection<BankAccount> batch;
+            CompletableFuture<Void> future;
+
+            synchronized (this) {
+                if (dirtyAccounts.isEmpty()) {
+                    return true;
+                }
+                batch = dirtyAccounts;
+                future = nextFlush;
+                flushingAccounts = dirtyAccounts;
+                currentFlush = nextFlush;
+                dirtyAccounts = new LinkedHashSet<>();
+                nextFlush = new CompletableFuture<>();
+            }
+
+            boolean stored = false;
+            try {
+                plugin.getStorage().storeAccounts(batch).join();
+                stored = true;
+            } catch (RuntimeException ex) {
+                Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+                plugin.getLogger().log(Level.SEVERE, "Failed to store " + batch.size() + " bank accounts", cause);
+            } finally {
+                CompletableFuture<Void> retry = null;
+                synchronized (this) {
+                    flushingAccounts = Collections.emptySet();
+                    if (!stored) {
+                        // Queue the accounts again without triggering an early flush, so they are retried later
+                        dirtyAccounts.addAll(batch);
+                        retry = nextFlush;
+                    }
+                }
+
+                if (stored) {
+                    retryDelay = 0;
+                    retryAt = 0;
+                    future.complete(null);
+                } else {
+                    retryDelay = Math.min(MAX_RETRY_DELAY, Math.max(MIN_RETRY_DELAY, retryDelay * 2));
+                    retryAt = System.currentTimeMillis() + retryDelay;
+                    retry.whenComplete((v, retryEx) -> {
+                        if (retryEx == null) {
+                            future.complete(null);
+                        } else {
+                            future.completeExceptionally(retryEx);
+                        }
+                    });
+                }
+            }
+            return stored;
+        }
+    }
+
+    /**
+     * Stops the periodic flush and writes all remaining changes to the storage.
+     * <p>
+     * This blocks until every change has been stored or a flush has failed.
+     * 
+     * @since 1.3
+     */
+    public void drain() {
+        if (flushTask != null) {
+            flushTask.cancel();
+            flushTask = null;
+        }
+        if (committer != null) {
+            // Scheduled and running commits complete before the remaining changes are written
+            committer.shutdown();
+            try {
+                committer.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        int count = getDirtyCount();
+        if (count == 0) {
+            return;
+        }
+
+        plugin.getLogger().info("Storing " + count + " changed bank accounts...");
+        if (!flush()) {
+            // One more try in case of a temporary failure
+            if (!flush()) {
+                plugin.getLogger().severe(getDirtyCount() + " bank accounts could not be stored");
+            }
+        }
+    }
+}
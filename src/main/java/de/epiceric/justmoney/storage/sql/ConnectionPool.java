@@ -0,0 +1,407 @@
+package de.epiceric.justmoney.storage.sql;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+/**
+ * A small pool of long-lived JDBC connections.
+ * <p>
+ * Connections handed out by {@link #getConnection()} are returned to the pool
+ * when they are closed. Prepared statements created with
+ * {@link Connection#prepareStatement(String)} are cached per connection and
+ * reused instead of being closed.
+ * 
+ * @since 1.3
+ */
+public class ConnectionPool {
+    /**
+     * Connections that have been idle for less than this time in milliseconds are not validated.
+     */
+    private static final long VALIDATION_IDLE_THRESHOLD = 1000;
+
+    /**
+     * Factory for physical connections to the database.
+     * 
+     * @since 1.3
+     */
+    @FunctionalInterface
+    public interface ConnectionFactory {
+        /**
+         * Opens a new connection to the database.
+         * 
+         * @return the connection
+         * @throws SQLException when a connection could not be established
+         * @since 1.3
+         */
+        Connection create() throws SQLException;
+    }
+
+    /**
+     * Settings of a connection pool.
+     * 
+     * @since 1.3
+     */
+    public static class Settings {
+        private int maxSize = 4;
+        private int minIdle = 1;
+        private long connectionTimeout = 10000;
+        private long idleTimeout = 600000;
+        private int validationTimeout = 5;
+        private int statementCacheSize = 16;
+
+        /**
+         * Reads the settings from the given config section.
+         * <p>
+         * Missing values keep their defaults.
+         * 
+         * @param config the config section, may be {@code null}
+         * @return the settings
+         * @since 1.3
+         */
+        public static Settings fromConfig(ConfigurationSection config) {
+            Settings settings = new Settings();
+            if (config != null) {
+                settings.maxSize = Math.max(1, config.getInt("max-size", settings.maxSize));
+                settings.minIdle = Math.max(0, config.getInt("min-idle", settings.minIdle));
+                settings.connectionTimeout = config.getLong("connection-timeout", settings.connectionTimeout);
+                settings.idleTimeout = config.getLong("idle-timeout", settings.idleTimeout);
+                settings.validationTimeout = config.getInt("validation-timeout", settings.validationTimeout);
+                settings.statementCacheSize = Math.max(0, config.getInt("statement-cache-size", settings.statementCacheSize));
+            }
+            return settings;
+        }
+
+        /**
+         * Gets the default settings with the given maximum amount of connections.
+         * 
+         * @param maxSize the maximum amount of open connections
+         * @return the settings
+         * @since 1.3
+         */
+        public static Settings ofSize(int maxSize) {
+            Settings settings = new Settings();
+            settings.maxSize = Math.max(1, maxSize);
+            return settings;
+        }
+
+        /**
+         * Gets the settings for a pool holding a single dedicated connection,
+         * which is never evicted.
+         * 
+         * @return the settings
+         * @since 1.3
+         */
+        public static Settings singleConnection() {
+            Settings settings = new Settings();
+            settings.maxSize = 1;
+            settings.minIdle = 1;
+            settings.idleTimeout = 0;
+            return settings;
+        }
+    }
+
+    private final Logger logger;
+    private final ConnectionFactory factory;
+    private final Settings settings;
+
+    private final BlockingDeque<PooledConnection> idleConnections = new LinkedBlockingDeque<>();
+    private final Semaphore permits;
+    private final ScheduledExecutorService evictor;
+
+    private volatile boolean closed = false;
+
+    public ConnectionPool(Logger logger, ConnectionFactory factory, Settings settings) {
+        this.logger = logger;
+        this.factory = factory;
+        this.settings = settings;
+        this.permits = new Semaphore(settings.maxSize, true);
+
+        if (settings.idleTimeout > 0) {
+            this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "JustMoney Connection Evictor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long period = Math.max(1000, settings.idleTimeout / 2);
+            this.evictor.scheduleWithFixedDelay(this::evictIdleConnections, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            this.evictor = null;
+        }
+    }
+
+    /**
+     * Gets a connection from the pool or opens a new one if none is idle.
+     * <p>
+     * The connection must be closed to return it to the pool.
+     * 
+     * @return the connection
+     * @throws SQLException when no connection is available in time or one could not be established
+     * @since 1.3
+     */
+    public Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("The connection pool has been closed");
+        }
+
+        try {
+            if (!permits.tryAcquire(settings.connectionTimeout, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Timed out waiting for a database connection");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", ex);
+        }
+
+        try {
+            PooledConnection pooled;
+            while ((pooled = idleConnections.pollFirst()) != null) {
+                if (isValid(pooled)) {
+                    return pooled.lease();
+                }
+                pooled.closePhysically();
+            }
+            return new PooledConnection(factory.create()).lease();
+        } catch (SQLException | RuntimeException ex) {
+            permits.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Closes all idle connections and stops handing out new ones.
+     * <p>
+     * Connections that are in use are closed when they are returned.
+     * 
+     * @since 1.3
+     */
+    public void close() {
+        closed = true;
+        if (evictor != null) {
+            evictor.shutdownNow();
+        }
+
+        PooledConnection pooled;
+        while ((pooled = idleConnections.pollFirst()) != null) {
+            pooled.closePhysically();
+        }
+    }
+
+    /**
+     * Checks whether the given idle connection can still be used.
+     * 
+     * @param pooled the connection
+     * @return whether the connection is valid
+     */
+    private boolean isValid(PooledConnection pooled) {
+        if (System.currentTimeMillis() - pooled.lastUsed < VALIDATION_IDLE_THRESHOLD) {
+            return true;
+        }
+
+        try {
+            return pooled.physical.isValid(settings.validationTimeout);
+        } catch (SQLException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the given connection to the pool.
+     * 
+     * @param pooled the connection
+     */
+    private void release(PooledConnection pooled) {
+        try {
+            if (closed || pooled.physical.isClosed()) {
+                pooled.closePhysically();
+                return;
+            }
+
+            if (!pooled.physical.getAutoCommit()) {
+                // Discard anything the previous user did not commit
+                pooled.physical.rollback();
+                pooled.physical.setAutoCommit(true);
+            }
+
+            pooled.lastUsed = System.currentTimeMillis();
+            idleConnections.offerFirst(pooled);
+        } catch (SQLException ex) {
+            pooled.closePhysically();
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Closes connections that have not been used within the idle timeout,
+     * while keeping the configured amount of idle connections open.
+     */
+    private void evictIdleConnections() {
+        long deadline = System.currentTimeMillis() - settings.idleTimeout;
+
+        // The least recently used connections are at the end of the deque
+        Iterator<PooledConnection> iter = idleConnections.descendingIterator();
+        while (iter.hasNext() && idleConnections.size() > settings.minIdle) {
+            PooledConnection pooled = iter.next();
+            if (pooled.lastUsed < deadline && idleConnections.remove(pooled)) {
+                pooled.closePhysically();
+            }
+        }
+    }
+
+    /**
+     * A physical connection with its prepared statement cache.
+     */
+    private class PooledConnection {
+        private final Connection physical;
+        private final Map<String, PreparedStatement> statementCache;
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        private PooledConnection(Connection physical) {
+            this.physical = physical;
+            this.statementCache = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                    if (size() <= settings.statementCacheSize) {
+                        return false;
+                    }
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+            };
+        }
+
+        /**
+         * Creates a handle to this connection that returns it to the pool when closed.
+         * 
+         * @return the connection handle
+         */
+        private Connection lease() {
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[] { Connection.class }, new ConnectionHandler(this));
+        }
+
+        /**
+         * Gets a cached prepared statement for the given query or prepares a new one.
+         * 
+         * @param sql the query
+         * @return the statement handle
+         * @throws SQLException when the statement could not be prepared
+         */
+        private PreparedStatement prepareStatement(String sql) throws SQLException {
+            if (settings.statementCacheSize == 0) {
+                return physical.prepareStatement(sql);
+            }
+
+            PreparedStatement stmt = statementCache.get(sql);
+            if (stmt == null || stmt.isClosed()) {
+                stmt = physical.prepareStatement(sql);
+                statementCache.put(sql, stmt);
+            }
+
+            PreparedStatement cached = stmt;
+            return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                    new Class<?>[] { PreparedStatement.class }, (proxy, method, args) -> {
+                        if (method.getName().equals("close")) {
+                            // Keep the statement for the next user
+                            cached.clearParameters();
+                            cached.clearBatch();
+                            return null;
+                        }
+                        return invoke(cached, method, args);
+                    });
+        }
+
+        /**
+         * Closes the physical connection and all its cached statements.
+         */
+        private void closePhysically() {
+            statementCache.values().forEach(this::closeQuietly);
+            statementCache.clear();
+            try {
+                physical.close();
+            } catch (SQLException ex) {
+                logger.log(Level.FINE, "Failed to close database connection", ex);
+            }
+        }
+
+        private void closeQuietly(PreparedStatement stmt) {
+            try {
+                stmt.close();
+            } catch (SQLException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Handles the calls on a leased connection.
+     */
+    private class ConnectionHandler implements InvocationHandler {
+        private final PooledConnection pooled;
+        private boolean released = false;
+
+        private ConnectionHandler(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!released) {
+                        released = true;
+                        release(pooled);
+                    }
+                    return null;
+                case "isClosed":
+                    return released || pooled.physical.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled" + pooled.physical.toString();
+            }
+
+            if (released) {
+                throw new SQLException("The connection has already been returned to the pool");
+            }
+
+            if (method.getName().equals("prepareStatement") && args.length == 1) {
+                return pooled.prepareStatement((String) args[0]);
+            }
+
+            return ConnectionPool.invoke(pooled.physical, method, args);
+        }
+    }
+
+    /**
+     * Invokes the given method and unwraps exceptions thrown by it.
+     */
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException ex) {
+            throw ex.getCause();
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package de.epiceric.justmoney.storage.sql;
 
-import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 
@@ -9,12 +8,22 @@ import de.epiceric.justmoney.storage.SqlStorage;
 
 /**
  * An SQL bank account storage using a MySQL database.
+ * <p>
+ * The database can be shared by several servers in multi-server mode.
  * 
  * @since 1.0
  */
 public class MySqlStorage extends SqlStorage {
+    /**
+     * The database server's current time in milliseconds.
+     */
+    private static final String CLOCK = "ROUND(UNIX_TIMESTAMP(NOW(3)) * 1000)";
+
+    private final boolean multiServer;
+
     public MySqlStorage(JustMoney plugin) {
         super(plugin);
+        this.multiServer = plugin.getConfig().getBoolean("mysql.multi-server.enabled");
     }
 
     @Override
@@ -23,20 +32,58 @@ public class MySqlStorage extends SqlStorage {
     }
 
     @Override
-    protected Connection getConnection() throws SQLException {
+    protected String getUpsertQuery() {
+        if (multiServer) {
+            // Other servers have to notice the new balance
+            return "INSERT INTO justmoney_balances (uuid_msb, uuid_lsb, world_id, balance, version, modified) "
+                + "VALUES (?,?,?,?,1," + CLOCK + ") "
+                + "ON DUPLICATE KEY UPDATE balance = VALUES(balance), version = version + 1, modified = VALUES(modified)";
+        }
+        return "INSERT INTO justmoney_balances (uuid_msb, uuid_lsb, world_id, balance) VALUES (?,?,?,?) "
+            + "ON DUPLICATE KEY UPDATE balance = VALUES(balance)";
+    }
+
+    @Override
+    protected boolean isMultiServer() {
+        return multiServer;
+    }
+
+    @Override
+    protected String getClockExpression() {
+        return CLOCK;
+    }
+
+    @Override
+    protected long getRefreshInterval() {
+        return plugin.getConfig().getLong("mysql.multi-server.poll-interval", 20);
+    }
+
+    @Override
+    protected int getFetchSize() {
+        return Math.max(1, plugin.getConfig().getInt("mysql.fetch-size"));
+    }
+
+    @Override
+    protected ConnectionPool createPool() throws SQLException {
         try {
             Class.forName("com.mysql.jdbc.Driver");
-            
-            String hostname = plugin.getConfig().getString("mysql.hostname");
-            int port = plugin.getConfig().getInt("mysql.port");
-            String database = plugin.getConfig().getString("mysql.database");
-            String username = plugin.getConfig().getString("mysql.username");
-            String password = plugin.getConfig().getString("mysql.password");
-
-            return DriverManager.getConnection(String.format("jdbc:mysql://%s:%d/%s?useSSL=false",
-                hostname, port, database), username, password);
         } catch (ReflectiveOperationException ex) {
             throw new SQLException("Failed to initialize MySQL driver");
         }
+
+        String hostname = plugin.getConfig().getString("mysql.hostname");
+        int port = plugin.getConfig().getInt("mysql.port");
+        String database = plugin.getConfig().getString("mysql.database");
+        String username = plugin.getConfig().getString("mysql.username");
+        String password = plugin.getConfig().getString("mysql.password");
+
+        // Batched statements are rewritten to multi-row inserts and
+        // results are fetched with a server-side cursor
+        String url = String.format("jdbc:mysql://%s:%d/%s?useSSL=false&rewriteBatchedStatements=true&useCursorFetch=true",
+            hostname, port, database);
+        ConnectionPool.Settings settings = ConnectionPool.Settings.fromConfig(
+                plugin.getConfig().getConfigurationSection("mysql.pool"));
+
+        return new ConnectionPool(plugin.getLogger(), () -> DriverManager.getConnection(url, username, password), settings);
     }
 }
\ No newline at end of file
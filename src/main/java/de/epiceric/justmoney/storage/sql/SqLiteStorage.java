@@ -5,21 +5,69 @@ import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 
 import de.epiceric.justmoney.JustMoney;
 import de.epiceric.justmoney.storage.SqlStorage;
 
 /**
  * An SQL bank account storage using an SQLite database.
+ * <p>
+ * In the "wal" engine mode, the database uses write-ahead logging. All writes
+ * are queued in memory and run one after another on a dedicated thread with a
+ * single long-lived connection, so writers never compete for SQLite's database
+ * lock. Accounts are loaded with separate read-only connections, which are not
+ * blocked by the writer.
  * 
  * @since 1.0
  */
 public class SqLiteStorage extends SqlStorage {
+    /**
+     * Time in milliseconds a connection waits for a lock held by another connection.
+     */
+    private static final int BUSY_TIMEOUT = 5000;
+
     private final File databaseFile;
+    private final boolean wal;
+    private final String synchronous;
+    private final int cacheSize;
+    private final int readConnections;
+
+    private final ExecutorService writer;
+    private ConnectionPool readPool;
 
     public SqLiteStorage(JustMoney plugin) {
         super(plugin);
         this.databaseFile = new File(plugin.getDataFolder(), "data.db");
+
+        String engine = plugin.getConfig().getString("sqlite.engine", "wal");
+        this.wal = !"legacy".equalsIgnoreCase(engine);
+        if (wal && !"wal".equalsIgnoreCase(engine)) {
+            plugin.getLogger().warning("Invalid SQLite engine: " + engine);
+            plugin.getLogger().warning("Using \"wal\" as fallback");
+        }
+
+        String synchronous = plugin.getConfig().getString("sqlite.synchronous", "normal").toUpperCase(Locale.ROOT);
+        if (!synchronous.matches("OFF|NORMAL|FULL|EXTRA")) {
+            plugin.getLogger().warning("Invalid SQLite synchronous mode: " + synchronous);
+            plugin.getLogger().warning("Using \"normal\" as fallback");
+            synchronous = "NORMAL";
+        }
+        this.synchronous = synchronous;
+        this.cacheSize = Math.max(0, plugin.getConfig().getInt("sqlite.cache-size", 8192));
+        this.readConnections = Math.max(1, plugin.getConfig().getInt("sqlite.read-connections", 2));
+
+        this.writer = !wal ? null : Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "JustMoney SQLite Writer");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     @Override
@@ -28,15 +76,111 @@ public class SqLiteStorage extends SqlStorage {
     }
 
     @Override
-    protected Connection getConnection() throws SQLException {
+    protected String getUpsertQuery() {
+        return "INSERT INTO justmoney_balances (uuid_msb, uuid_lsb, world_id, balance) VALUES (?,?,?,?) "
+            + "ON CONFLICT (uuid_msb, uuid_lsb, world_id) DO UPDATE SET balance = excluded.balance";
+    }
+
+    @Override
+    protected ConnectionPool createPool() throws SQLException {
+        loadDriver();
+
+        // SQLite only allows a single writer, so a single dedicated connection is used
+        String url = "jdbc:sqlite:" + databaseFile.getPath();
+        if (!wal) {
+            return new ConnectionPool(plugin.getLogger(), () -> DriverManager.getConnection(url),
+                    ConnectionPool.Settings.singleConnection());
+        }
+
+        return new ConnectionPool(plugin.getLogger(), () -> openConnection(url, "PRAGMA journal_mode=WAL",
+                "PRAGMA synchronous=" + synchronous), ConnectionPool.Settings.singleConnection());
+    }
+
+    @Override
+    protected Connection getReadConnection() throws SQLException {
+        if (!wal) {
+            return getConnection();
+        }
+
+        ConnectionPool pool;
+        synchronized (this) {
+            if (readPool == null) {
+                loadDriver();
+                String url = "jdbc:sqlite:" + databaseFile.getPath();
+                readPool = new ConnectionPool(plugin.getLogger(), () -> openConnection(url, "PRAGMA query_only=ON"),
+                        ConnectionPool.Settings.ofSize(readConnections));
+            }
+            pool = readPool;
+        }
+        return pool.getConnection();
+    }
+
+    @Override
+    protected Executor getWriteExecutor() {
+        return wal ? writer : super.getWriteExecutor();
+    }
+
+    @Override
+    public void close() {
+        if (writer != null) {
+            // Complete all queued writes before the connection is closed
+            writer.shutdown();
+            try {
+                if (!writer.awaitTermination(30, TimeUnit.SECONDS)) {
+                    plugin.getLogger().severe("Queued SQLite writes did not complete in time");
+                }
+            } catch (InterruptedException ex) {
+                plugin.getLogger().log(Level.SEVERE, "Interrupted while waiting for queued SQLite writes", ex);
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized (this) {
+            if (readPool != null) {
+                readPool.close();
+                readPool = null;
+            }
+        }
+        super.close();
+    }
+
+    /**
+     * Loads the SQLite JDBC driver.
+     * 
+     * @throws SQLException when the driver could not be loaded
+     */
+    private void loadDriver() throws SQLException {
         try {
             Class.forName("org.sqlite.JDBC");
-            return DriverManager.getConnection("jdbc:sqlite:" + databaseFile.getPath());
         } catch (ReflectiveOperationException ex) {
             throw new SQLException("Failed to initialize SQLite driver");
         }
     }
 
+    /**
+     * Opens a connection and applies the tuning pragmas and the given pragmas.
+     * 
+     * @param url the database URL
+     * @param pragmas additional pragma statements
+     * @return the connection
+     * @throws SQLException when the connection could not be opened
+     */
+    private Connection openConnection(String url, String... pragmas) throws SQLException {
+        Connection conn = DriverManager.getConnection(url);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA busy_timeout=" + BUSY_TIMEOUT);
+            // A negative cache size is interpreted as kilobytes instead of pages
+            stmt.execute("PRAGMA cache_size=-" + cacheSize);
+            for (String pragma : pragmas) {
+                stmt.execute(pragma);
+            }
+        } catch (SQLException ex) {
+            conn.close();
+            throw ex;
+        }
+        return conn;
+    }
+
     @Override
     protected void initDatabase() throws SQLException {
         try {
@@ -47,4 +191,4 @@ public class SqLiteStorage extends SqlStorage {
         }
         super.initDatabase();
     }
-}
\ No newline at end of file
+}
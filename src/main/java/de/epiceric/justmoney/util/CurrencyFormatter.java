@@ -0,0 +1,158 @@
+package de.epiceric.justmoney.util;
+
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.NumberFormat;
+import java.util.Locale;
+
+import de.epiceric.justmoney.model.MoneyScale;
+
+/**
+ * Formats money values with a currency format that is compiled once.
+ * <p>
+ * The format is split at its <code>{value}</code> placeholders into constant
+ * parts that already contain the currency sign. A value is then written digit
+ * by digit with the same grouping and decimal separators that
+ * {@link String#format(String, Object...)} uses for <code>%,.2f</code>, into
+ * a builder that is reused by each thread.
+ * 
+ * @since 1.3
+ */
+public final class CurrencyFormatter {
+    private static final ThreadLocal<StringBuilder> BUILDER = ThreadLocal.withInitial(() -> new StringBuilder(32));
+
+    private final MoneyScale scale;
+    private final String[] parts;
+    private final String fallbackPattern;
+    private final char groupingSeparator;
+    private final char decimalSeparator;
+    private final int groupingSize;
+
+    /**
+     * Compiles the given currency format.
+     * 
+     * @param format the format with the placeholders <code>{value}</code> and <code>{sign}</code>
+     * @param sign the currency sign
+     * @param scale the scale that defines the amount of decimal places
+     * @since 1.3
+     */
+    public CurrencyFormatter(String format, String sign, MoneyScale scale) {
+        this.scale = scale;
+        this.parts = format.split("\\{value\\}", -1);
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = parts[i].replace("{sign}", sign);
+        }
+        this.fallbackPattern = "%,." + scale.getDecimalPlaces() + "f";
+
+        Locale locale = Locale.getDefault(Locale.Category.FORMAT);
+        DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance(locale);
+        this.groupingSeparator = symbols.getGroupingSeparator();
+        this.decimalSeparator = symbols.getDecimalSeparator();
+
+        NumberFormat numberFormat = NumberFormat.getIntegerInstance(locale);
+        int size = numberFormat instanceof DecimalFormat ? ((DecimalFormat) numberFormat).getGroupingSize() : 3;
+        this.groupingSize = size > 0 ? size : 3;
+    }
+
+    /**
+     * Formats the given amount, rounded half up to the configured decimal places.
+     * <p>
+     * The amount is rounded exactly like it is stored, see {@link MoneyScale#toMinorUnits(double)}.
+     * Amounts that are rounded to zero are never formatted with a minus sign.
+     * 
+     * @param amount the amount
+     * @return the formatted string
+     * @since 1.3
+     */
+    public String format(double amount) {
+        long minorUnits;
+        try {
+            minorUnits = scale.toMinorUnits(amount);
+        } catch (ArithmeticException ex) {
+            // Not a number or too large to be represented in minor units
+            return format(String.format(fallbackPattern, amount));
+        }
+        return format(minorUnits);
+    }
+
+    /**
+     * Formats the given amount of minor units.
+     * 
+     * @param minorUnits the amount in minor units
+     * @return the formatted string
+     * @since 1.3
+     * @see MoneyScale
+     */
+    public String format(long minorUnits) {
+        if (minorUnits == Long.MIN_VALUE) {
+            // Cannot be negated
+            return format(String.format(fallbackPattern, scale.fromMinorUnits(minorUnits)));
+        }
+
+        StringBuilder builder = BUILDER.get();
+        builder.setLength(0);
+
+        builder.append(parts[0]);
+        for (int i = 1; i < parts.length; i++) {
+            appendValue(builder, minorUnits);
+            builder.append(parts[i]);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Inserts an already formatted value into the format.
+     */
+    private String format(String value) {
+        return String.join(value, parts);
+    }
+
+    /**
+     * Appends the given amount of minor units with grouping and decimal separators.
+     */
+    private void appendValue(StringBuilder builder, long minorUnits) {
+        long abs = Math.abs(minorUnits);
+        long factor = scale.getFactor();
+
+        if (minorUnits < 0) {
+            builder.append('-');
+        }
+
+        appendGrouped(builder, abs / factor);
+
+        int decimalPlaces = scale.getDecimalPlaces();
+        if (decimalPlaces > 0) {
+            builder.append(decimalSeparator);
+            long fraction = abs % factor;
+            for (long digit = factor / 10; digit > 1 && fraction < digit; digit /= 10) {
+                builder.append('0');
+            }
+            builder.append(fraction);
+        }
+    }
+
+    /**
+     * Appends the given non-negative number with grouping separators.
+     */
+    private void appendGrouped(StringBuilder builder, long value) {
+        int start = builder.length();
+        builder.append(value);
+
+        int digits = builder.length() - start;
+        int separators = (digits - 1) / groupingSize;
+        if (separators == 0) {
+            return;
+        }
+
+        // Move the digits to the right, from the last to the first, inserting the separators
+        int from = start + digits - 1;
+        int to = from + separators;
+        builder.setLength(to + 1);
+        for (int count = 0; from >= start; count++) {
+            if (count > 0 && count % groupingSize == 0) {
+                builder.setCharAt(to--, groupingSeparator);
+            }
+            builder.setCharAt(to--, builder.charAt(from--));
+        }
+    }
+}
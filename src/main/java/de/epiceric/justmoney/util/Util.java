@@ -1,12 +1,10 @@
 package de.epiceric.justmoney.util;
 
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
-import org.bukkit.OfflinePlayer;
 import org.bukkit.entity.Player;
 
 import de.epiceric.justmoney.JustMoney;
@@ -58,15 +56,35 @@ public class Util {
      * @since 1.2
      */
     public static List<String> completePlayer(JustMoney plugin, Player executor) {
-        if (plugin.getConfig().getBoolean("offline-tab-completion")) {
-            return Arrays.stream(plugin.getServer().getOfflinePlayers())
-                .map(OfflinePlayer::getName)
-                .filter(name -> executor == null || !name.equalsIgnoreCase(executor.getName()))
-                .collect(Collectors.toList());
+        return completePlayer(plugin, executor, "");
+    }
+
+    /**
+     * Gets the tab completions for a player name that starts with the given prefix.
+     * <p>
+     * Offline players are looked up in the player index, and at most the configured
+     * amount of their names is returned.
+     * 
+     * @param plugin an instance of the plugin
+     * @param executor the player to be omitted from the completions
+     * @param prefix the part of the name that has already been entered
+     * @return the tab completions
+     * @since 1.3
+     */
+    public static List<String> completePlayer(JustMoney plugin, Player executor, String prefix) {
+        if (plugin.getSettings().isOfflineTabCompletion()) {
+            int limit = plugin.getSettings().getTabCompletionLimit();
+            List<String> names = plugin.getPlayerIndex().getNames(prefix, limit + 1);
+            if (executor != null) {
+                names.removeIf(name -> name.equalsIgnoreCase(executor.getName()));
+            }
+            return names.size() > limit ? names.subList(0, limit) : names;
         } else {
+            String lowerPrefix = prefix.toLowerCase();
             return plugin.getServer().getOnlinePlayers().stream()
                 .map(Player::getName)
                 .filter(name -> executor == null || !name.equalsIgnoreCase(executor.getName()))
+                .filter(name -> name.toLowerCase().startsWith(lowerPrefix))
                 .collect(Collectors.toList());
         }
     }